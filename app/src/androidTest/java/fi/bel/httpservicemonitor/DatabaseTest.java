@@ -0,0 +1,148 @@
+package fi.bel.httpservicemonitor;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Schema migrations, run on a device since they need the platform's SQLite.
+ */
+public class DatabaseTest extends AndroidTestCase {
+    protected static final String NAME = "state-test";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(NAME);
+        super.tearDown();
+    }
+
+    /**
+     * @return database as the versions before the helper left it, without a schema version
+     */
+    protected SQLiteDatabase createVersion1() {
+        SQLiteDatabase db = getContext().openOrCreateDatabase(NAME, Context.MODE_PRIVATE, null);
+        db.execSQL("create table if not exists url (_id integer primary key, name text, address text, lastOk text, lastCheck text, status text)");
+        return db;
+    }
+
+    /**
+     * @return tables with their columns, and the index definitions
+     */
+    protected static String schema(SQLiteDatabase db) {
+        StringBuilder schema = new StringBuilder();
+        try (Cursor objects = db.rawQuery("select type, name, sql from sqlite_master where name not like 'sqlite_%' order by name", null)) {
+            while (objects.moveToNext()) {
+                if ("index".equals(objects.getString(0))) {
+                    schema.append(objects.getString(2)).append('\n');
+                    continue;
+                }
+                /* An added column and a declared one have a different create statement, so compare columns */
+                schema.append(objects.getString(0)).append(' ').append(objects.getString(1)).append('\n');
+                try (Cursor columns = db.rawQuery("pragma table_info(" + objects.getString(1) + ")", null)) {
+                    while (columns.moveToNext()) {
+                        schema.append("  ").append(columns.getString(1)).append(' ').append(columns.getString(2))
+                                .append(" notnull=").append(columns.getInt(3)).append(" default=").append(columns.getString(4))
+                                .append(" pk=").append(columns.getInt(5)).append('\n');
+                    }
+                }
+            }
+        }
+        return schema.toString();
+    }
+
+    public void testUpgradeFromVersion1MatchesNewSchema() {
+        createVersion1().close();
+        Database upgraded = new Database(getContext(), NAME);
+        String upgradedSchema = schema(upgraded.get());
+        upgraded.close();
+
+        getContext().deleteDatabase(NAME);
+        Database created = new Database(getContext(), NAME);
+        String createdSchema = schema(created.get());
+        created.close();
+
+        assertEquals(createdSchema, upgradedSchema);
+    }
+
+    public void testVersion1RowsAreConverted() {
+        SQLiteDatabase v1 = createVersion1();
+        v1.execSQL("insert into url values (1, 'ok', 'http://ok/', '1000', '2000', 'OK')");
+        v1.execSQL("insert into url values (2, 'fail', 'http://fail/', null, null, 'FAIL')");
+        v1.execSQL("insert into url values (3, 'edit', 'http://edit/', '0', '0', 'EDIT')");
+        v1.execSQL("insert into url values (4, 'new', 'http://new/', '0', '0', 'NEW')");
+        v1.close();
+
+        Database database = new Database(getContext(), NAME);
+        try (Cursor cursor = database.get().rawQuery("select _id, name, address, lastOk, lastCheck, status, "
+                + "typeof(lastOk), typeof(lastCheck) from url order by _id", null)) {
+            assertEquals(4, cursor.getCount());
+
+            cursor.moveToNext();
+            assertEquals("ok", cursor.getString(1));
+            assertEquals("http://ok/", cursor.getString(2));
+            assertEquals(1000, cursor.getLong(3));
+            assertEquals(2000, cursor.getLong(4));
+            assertEquals(Database.STATUS_OK, cursor.getInt(5));
+            assertEquals("integer", cursor.getString(6));
+            assertEquals("integer", cursor.getString(7));
+
+            cursor.moveToNext();
+            assertEquals(0, cursor.getLong(3));
+            assertEquals(0, cursor.getLong(4));
+            assertEquals(Database.STATUS_FAIL, cursor.getInt(5));
+
+            cursor.moveToNext();
+            assertEquals(Database.STATUS_EDIT, cursor.getInt(5));
+
+            cursor.moveToNext();
+            assertEquals(Database.STATUS_NEW, cursor.getInt(5));
+        } finally {
+            database.close();
+        }
+    }
+
+    public void testUpgradeSpreadsChecksOverTheInterval() {
+        SQLiteDatabase v1 = createVersion1();
+        for (int i = 1; i <= 3; i++) {
+            v1.execSQL("insert into url values (" + i + ", 'url', 'http://url/', '0', '0', 'OK')");
+        }
+        v1.close();
+
+        long before = System.currentTimeMillis();
+        Database database = new Database(getContext(), NAME);
+        try (Cursor cursor = database.get().rawQuery("select distinct checkInterval, nextCheck from url", null)) {
+            assertEquals(3, cursor.getCount());
+            while (cursor.moveToNext()) {
+                assertEquals(MainActivity.CHECK_INTERVAL_MS, cursor.getLong(0));
+                assertTrue(cursor.getLong(1) >= before);
+                assertTrue(cursor.getLong(1) < System.currentTimeMillis() + MainActivity.CHECK_INTERVAL_MS);
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    public void testUpgradeMarksFailedUrlsFailing() {
+        SQLiteDatabase v1 = createVersion1();
+        v1.execSQL("insert into url values (1, 'ok', 'http://ok/', '0', '0', 'OK')");
+        v1.execSQL("insert into url values (2, 'fail', 'http://fail/', '0', '0', 'FAIL')");
+        v1.close();
+
+        Database database = new Database(getContext(), NAME);
+        try (Cursor cursor = database.get().rawQuery("select alertState from url order by _id", null)) {
+            cursor.moveToNext();
+            assertEquals(AlertEvaluator.STATE_OK, cursor.getInt(0));
+            cursor.moveToNext();
+            assertEquals(AlertEvaluator.STATE_FAILING, cursor.getInt(0));
+        } finally {
+            database.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package fi.bel.httpservicemonitor;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.media.RingtoneManager;
+import android.util.Log;
+
+import java.text.MessageFormat;
+
+/**
+ * Shows the alert state as notifications. Make ungodly racket if there are old failures
+ * in any monitored service, but only when a url newly gets there: the notification is
+ * otherwise updated quietly, so that a url that comes and goes does not start the
+ * insistent alarm over and over. While the alarm goes on, the posted notification is left
+ * alone, since replacing it would silence it before it is dismissed.
+ */
+public class AlertNotifier implements Notifier {
+    protected static final String TAG = AlertNotifier.class.getSimpleName();
+    protected static final int ALERT_NOTIFICATION_ID = 1;
+    protected static final int LATENCY_NOTIFICATION_ID = 2;
+
+    protected final Context applicationContext;
+
+    public AlertNotifier(Context applicationContext) {
+        this.applicationContext = applicationContext;
+    }
+
+    @Override
+    public void publish(AlertEvaluator.Alert alert) {
+        NotificationManager nm = (NotificationManager) applicationContext.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        Notification.Builder nb = new Notification.Builder(applicationContext);
+        nb.setPriority(Notification.PRIORITY_HIGH);
+        nb.setWhen(alert.oldestFailure);
+        nb.setSmallIcon(R.drawable.ic_launcher);
+        nb.setContentTitle("Some services not reachable");
+        nb.setContentText(MessageFormat.format("Problems detected: {0} failing, {1} flapping, {2} suspect",
+                alert.failureCount, alert.flappingCount, alert.suspectCount));
+        nb.setContentIntent(PendingIntent.getActivity(applicationContext, 0, new Intent(applicationContext, MainActivity.class), 0));
+        nb.setAutoCancel(true);
+
+        if (alert.level == AlertEvaluator.Level.NONE) {
+            Log.i(TAG, "No alarm required, everything is now OK");
+            nm.cancel(ALERT_NOTIFICATION_ID);
+        } else if (alert.level == AlertEvaluator.Level.WEAK) {
+            Log.i(TAG, "Weak alarm required, ongoing failures: " + alert.failureCount);
+            nb.setNumber(alert.failureCount);
+            nb.setLights(0xbbbb00, 100, 400);
+            Notification n = nb.build();
+            nm.notify(ALERT_NOTIFICATION_ID, n);
+        } else if (alert.escalated) {
+            Log.i(TAG, "Strong alarm required, old failures: " + alert.oldFailureCount);
+            /* Make a super obnoxious alert */
+            nb.setNumber(alert.oldFailureCount);
+            nb.setLights(0xff0000, 100, 400);
+            nb.setVibrate(new long[] { 1000, 1000 });
+            nb.setSound(RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM));
+            Notification n = nb.build();
+            n.flags |= Notification.FLAG_INSISTENT;
+            nm.notify(ALERT_NOTIFICATION_ID, n);
+        } else {
+            /* Already sounded for these; leave the alarm as it is */
+            Log.i(TAG, "Strong alarm continues, old failures: " + alert.oldFailureCount);
+        }
+
+        /* Latency regressions only get a quiet notification of their own */
+        if (alert.slowCount == 0) {
+            nm.cancel(LATENCY_NOTIFICATION_ID);
+        } else {
+            Log.i(TAG, "Latency alarm required, slow services: " + alert.slowCount);
+            Notification.Builder slow = new Notification.Builder(applicationContext);
+            slow.setSmallIcon(R.drawable.ic_launcher);
+            slow.setContentTitle("Some services are slow");
+            slow.setContentText("Response time regression detected");
+            slow.setContentIntent(PendingIntent.getActivity(applicationContext, 0, new Intent(applicationContext, MainActivity.class), 0));
+            slow.setAutoCancel(true);
+            slow.setNumber(alert.slowCount);
+            slow.setLights(0x0000ff, 100, 400);
+            nm.notify(LATENCY_NOTIFICATION_ID, slow.build());
+        }
+    }
+}
@@ -11,5 +11,6 @@ public class BootCompletedReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         MainActivity.initializeAlarm(context);
+        HeartbeatService.update(context);
     }
 }
@@ -0,0 +1,98 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader of comma separated values as in RFC 4180: fields may be quoted with
+ * double quotes, and quoted fields may contain commas, line breaks and doubled quotes.
+ * Only one record is held in memory at a time.
+ */
+public class CsvReader {
+    protected final Reader reader;
+    protected final StringBuilder field = new StringBuilder();
+    protected final List<String> record = new ArrayList<>();
+    protected int peeked = -2;
+
+    /**
+     * @param reader source; wrap it in a BufferedReader, since this reads one char at a time
+     */
+    public CsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    protected int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return reader.read();
+    }
+
+    protected int peek() throws IOException {
+        if (peeked == -2) {
+            peeked = reader.read();
+        }
+        return peeked;
+    }
+
+    /**
+     * @return fields of the next record, or null at the end of input; blank lines are skipped
+     * @throws IOException on read error, or if a quoted field is not closed
+     */
+    public String[] readRecord() throws IOException {
+        while (true) {
+            record.clear();
+            int c = read();
+            if (c == -1) {
+                return null;
+            }
+            if (c == '\r' || c == '\n') {
+                continue;
+            }
+
+            while (true) {
+                field.setLength(0);
+                if (c == '"') {
+                    while (true) {
+                        c = read();
+                        if (c == -1) {
+                            throw new IOException("Unterminated quoted field");
+                        }
+                        if (c == '"') {
+                            if (peek() != '"') {
+                                break;
+                            }
+                            read();
+                        }
+                        field.append((char) c);
+                    }
+                    c = read();
+                }
+                while (c != ',' && c != '\n' && c != '\r' && c != -1) {
+                    field.append((char) c);
+                    c = read();
+                }
+                record.add(field.toString());
+                if (c != ',') {
+                    break;
+                }
+                c = read();
+            }
+            return record.toArray(new String[record.size()]);
+        }
+    }
+
+    /**
+     * Quote a field for writing, if it needs quoting.
+     */
+    public static String quote(String value) {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1 && value.indexOf('\r') == -1) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,349 @@
+package fi.bel.httpservicemonitor;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide handle to the state database. The database is opened once, in write-ahead
+ * logging mode so that the UI can read while a poll cycle writes, and the statements used
+ * on every alarm tick are compiled once and kept for the life of the process.
+ *
+ * The cached statements are shared between threads, so each use is synchronized on the
+ * statement. Writers must already be inside a transaction when they call the update
+ * methods, so that the database lock is always taken before the statement lock.
+ */
+public class Database extends SQLiteOpenHelper {
+    protected static final String NAME = "state";
+    protected static final int VERSION = 10;
+
+    /* Values of url.status */
+    public static final int STATUS_NEW = 0;
+    public static final int STATUS_EDIT = 1;
+    public static final int STATUS_OK = 2;
+    public static final int STATUS_FAIL = 3;
+
+    protected static final String[] STATUS_NAMES = { "NEW", "EDIT", "OK", "FAIL" };
+
+    protected static final String DUE_QUERY = "select _id, address, nextCheck, checkInterval, headOnly, bodyPatterns, bodyMaxBytes, "
+            + "probeType, httpInterval, lastHttpCheck, lastOk from url where nextCheck <= ?";
+
+    protected static Database instance;
+
+    protected SQLiteStatement updateOk;
+    protected SQLiteStatement updateFail;
+    protected SQLiteStatement updateAlertState;
+    protected SQLiteStatement updateHttpCheck;
+    protected SQLiteStatement oldestCheck;
+    protected SQLiteStatement earliestCheck;
+    protected SQLiteStatement updateNextCheck;
+    protected History history;
+    protected LatencyStats latencyStats;
+
+    /**
+     * Return the shared database helper, opening the database on first use.
+     *
+     * @param context some context
+     * @return helper bound to the application context
+     */
+    public static synchronized Database getInstance(Context context) {
+        if (instance == null) {
+            instance = new Database(context.getApplicationContext());
+            instance.getWritableDatabase();
+        }
+        return instance;
+    }
+
+    protected Database(Context context) {
+        this(context, NAME);
+    }
+
+    /**
+     * @param name database file name; tests use their own
+     */
+    protected Database(Context context, String name) {
+        super(context, name, null, VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        /* Installations predating the helper already have the version 1 table, but no schema version. */
+        if (DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' and name = 'url'") != 0) {
+            onUpgrade(db, 1, VERSION);
+            return;
+        }
+
+        createUrlTable(db);
+        onUpgrade(db, 2, VERSION);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            /* Timestamps were declared text, and status was a text label. Copy into typed columns. */
+            db.execSQL("alter table url rename to url_v1");
+            createUrlTable(db);
+            db.execSQL("insert into url (_id, name, address, lastOk, lastCheck, status) "
+                    + "select _id, name, address, cast(coalesce(lastOk, 0) as integer), cast(coalesce(lastCheck, 0) as integer), "
+                    + "case status when 'EDIT' then " + STATUS_EDIT + " when 'OK' then " + STATUS_OK
+                    + " when 'FAIL' then " + STATUS_FAIL + " else " + STATUS_NEW + " end "
+                    + "from url_v1");
+            db.execSQL("drop table url_v1");
+        }
+        if (oldVersion < 3) {
+            History.createTables(db);
+        }
+        if (oldVersion < 4) {
+            LatencyStats.createTables(db);
+        }
+        if (oldVersion < 5) {
+            db.execSQL("alter table url add column checkInterval integer not null default " + MainActivity.CHECK_INTERVAL_MS);
+            db.execSQL("alter table url add column nextCheck integer not null default 0");
+            db.execSQL("create index url_nextCheck on url (nextCheck)");
+            /* Everything used to be checked in the same alarm; give each url its own phase. */
+            CheckScheduler scheduler = new CheckScheduler(System.currentTimeMillis(), MainActivity.CHECK_INTERVAL_MS);
+            try (Cursor cursor = db.rawQuery("select _id from url", new String[] {})) {
+                while (cursor.moveToNext()) {
+                    db.execSQL("update url set nextCheck = ? where _id = ?", new Object[] { scheduler.place(), cursor.getLong(0) });
+                }
+            }
+        }
+        if (oldVersion < 6) {
+            db.execSQL("alter table url add column headOnly integer not null default 0");
+            db.execSQL("alter table url add column bodyPatterns text");
+            db.execSQL("alter table url add column bodyMaxBytes integer not null default " + BodyRule.DEFAULT_MAX_BYTES);
+        }
+        if (oldVersion < 7) {
+            /* For duplicate detection on import */
+            db.execSQL("create index url_address on url (address)");
+        }
+        if (oldVersion < 8) {
+            /* AlertEvaluator state; only the rows that are not OK are loaded */
+            db.execSQL("alter table url add column alertState integer not null default " + AlertEvaluator.STATE_OK);
+            db.execSQL("create index url_alertState on url (alertState)");
+            db.execSQL("update url set alertState = " + AlertEvaluator.STATE_FAILING + " where status = " + STATUS_FAIL);
+        }
+        if (oldVersion < 9) {
+            /* A url may be checked with a cheap probe every checkInterval, and a request every httpInterval */
+            db.execSQL("alter table url add column probeType integer not null default " + ProbeEngine.PROBE_HTTP);
+            db.execSQL("alter table url add column httpInterval integer not null default " + MainActivity.HTTP_INTERVAL_MS);
+            db.execSQL("alter table url add column lastHttpCheck integer not null default 0");
+        }
+        if (oldVersion < 10) {
+            /* Urls that send heartbeats are found by their token; null for the others */
+            db.execSQL("alter table url add column heartbeatToken text");
+            db.execSQL("create unique index url_heartbeatToken on url (heartbeatToken)");
+        }
+    }
+
+    /**
+     * Create the url table in its version 2 layout; later versions alter it in onUpgrade.
+     */
+    protected static void createUrlTable(SQLiteDatabase db) {
+        db.execSQL("create table url (_id integer primary key, name text, address text, "
+                + "lastOk integer not null default 0, lastCheck integer not null default 0, status integer not null default " + STATUS_NEW + ")");
+        /* For the oldest check aggregate */
+        db.execSQL("create index url_lastCheck on url (lastCheck)");
+        /* For the failure aggregates */
+        db.execSQL("create index url_status_lastOk on url (status, lastOk)");
+    }
+
+    /**
+     * @param status value of url.status
+     * @return human readable label
+     */
+    public static String statusName(int status) {
+        return status >= 0 && status < STATUS_NAMES.length ? STATUS_NAMES[status] : String.valueOf(status);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        updateOk = db.compileStatement("update url set lastCheck = ?, lastOk = ?, status = " + STATUS_OK + " where _id = ?");
+        updateFail = db.compileStatement("update url set lastCheck = ?, status = " + STATUS_FAIL + " where _id = ?");
+        updateAlertState = db.compileStatement("update url set alertState = ? where _id = ?");
+        updateHttpCheck = db.compileStatement("update url set lastHttpCheck = ? where _id = ?");
+        oldestCheck = db.compileStatement("select coalesce(min(lastCheck), 0) from url where lastCheck != 0");
+        earliestCheck = db.compileStatement("select coalesce(min(nextCheck), -1) from url");
+        updateNextCheck = db.compileStatement("update url set nextCheck = ? where _id = ?");
+        history = new History(db);
+        latencyStats = new LatencyStats(db);
+    }
+
+    /**
+     * @return check history store
+     */
+    public History history() {
+        return history;
+    }
+
+    /**
+     * @return per phase latency histograms
+     */
+    public LatencyStats latencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * @return the shared open database; never close it
+     */
+    public SQLiteDatabase get() {
+        return getWritableDatabase();
+    }
+
+    /**
+     * Query rows that need to be polled. The SQL text is constant, so the compiled form is
+     * reused from the connection's statement cache.
+     *
+     * @param until rows scheduled to be checked at or before this time are due
+     * @return cursor of _id, address, nextCheck, checkInterval, headOnly, bodyPatterns, bodyMaxBytes,
+     *         probeType, httpInterval, lastHttpCheck, lastOk
+     */
+    public Cursor queryDue(long until) {
+        return get().rawQuery(DUE_QUERY, new String[] { String.valueOf(until) });
+    }
+
+    /**
+     * Set the time of the next check of a row. Call within a transaction.
+     */
+    public void updateNextCheck(long id, long nextCheck) {
+        synchronized (updateNextCheck) {
+            updateNextCheck.bindLong(1, nextCheck);
+            updateNextCheck.bindLong(2, id);
+            updateNextCheck.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * @return the earliest scheduled check time, or -1 if there is nothing to check
+     */
+    public long earliestCheck() {
+        synchronized (earliestCheck) {
+            return earliestCheck.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Choose the first check time of a url so that it lands where the fewest other checks are.
+     *
+     * @param checkInterval check interval of the url
+     * @param excludeId _id of the url itself if it already exists, otherwise 0
+     * @return wall clock time of the first check
+     */
+    public long placeCheck(long checkInterval, long excludeId) {
+        return newScheduler(checkInterval, excludeId).place();
+    }
+
+    /**
+     * Create a scheduler that knows about the checks of the existing urls. Placing many urls
+     * with one scheduler costs one scan of the table in total.
+     *
+     * @param checkInterval check interval of the urls to be placed
+     * @param excludeId _id of a url to leave out, or 0
+     * @return scheduler
+     */
+    public CheckScheduler newScheduler(long checkInterval, long excludeId) {
+        CheckScheduler scheduler = new CheckScheduler(System.currentTimeMillis(), checkInterval);
+        try (Cursor cursor = get().rawQuery("select nextCheck, checkInterval from url where _id != ?",
+                new String[] { String.valueOf(excludeId) })) {
+            while (cursor.moveToNext()) {
+                scheduler.add(cursor.getLong(0), cursor.getLong(1));
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Mark row as OK. Call within a transaction.
+     */
+    public void updateOk(long id, long now) {
+        synchronized (updateOk) {
+            updateOk.bindLong(1, now);
+            updateOk.bindLong(2, now);
+            updateOk.bindLong(3, id);
+            updateOk.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Mark row as failed. Call within a transaction.
+     */
+    public void updateFail(long id, long now) {
+        synchronized (updateFail) {
+            updateFail.bindLong(1, now);
+            updateFail.bindLong(2, id);
+            updateFail.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Note when a row last had a full HTTP check. Call within a transaction.
+     */
+    public void updateHttpCheck(long id, long now) {
+        synchronized (updateHttpCheck) {
+            updateHttpCheck.bindLong(1, now);
+            updateHttpCheck.bindLong(2, id);
+            updateHttpCheck.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Persist a change of alert state. Call within a transaction.
+     */
+    public void updateAlertState(long id, int state) {
+        synchronized (updateAlertState) {
+            updateAlertState.bindLong(1, state);
+            updateAlertState.bindLong(2, id);
+            updateAlertState.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Restore the alert state of the rows that are not OK.
+     *
+     * @param evaluator evaluator to load into
+     * @return number of rows loaded
+     */
+    public int loadAlertStates(AlertEvaluator evaluator) {
+        try (Cursor cursor = get().rawQuery("select _id, alertState, lastOk, slow from url where alertState != " + AlertEvaluator.STATE_OK
+                + " or slow != 0", new String[] {})) {
+            while (cursor.moveToNext()) {
+                evaluator.load(cursor.getLong(0), cursor.getInt(1), cursor.getLong(2), cursor.getInt(3) != 0);
+            }
+            return cursor.getCount();
+        }
+    }
+
+    /**
+     * @return heartbeat token of each row that sends heartbeats, by _id
+     */
+    public Map<Long, String> heartbeatTokens() {
+        Map<Long, String> tokens = new HashMap<>();
+        try (Cursor cursor = get().rawQuery("select _id, heartbeatToken from url where probeType = " + ProbeEngine.PROBE_PUSH
+                + " and heartbeatToken is not null", new String[] {})) {
+            while (cursor.moveToNext()) {
+                tokens.put(cursor.getLong(0), cursor.getString(1));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the earliest lastCheck among checked rows, or 0 if nothing has been checked
+     */
+    public long oldestCheck() {
+        synchronized (oldestCheck) {
+            return oldestCheck.simpleQueryForLong();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package fi.bel.httpservicemonitor;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MonitorStore of the app: results go to the url table, the check history and the latency
+ * stats, one transaction per batch. The changes of alert state they cause go with them.
+ *
+ * The AlertEvaluator lives as long as the process; it is loaded from the url table when
+ * first needed.
+ */
+public class DatabaseStore implements MonitorStore {
+    protected static final String TAG = DatabaseStore.class.getSimpleName();
+    protected static final Metrics.Histogram DB_WRITE = Metrics.getInstance().histogram("db.writeMs");
+
+    protected static AlertEvaluator evaluator;
+
+    protected final Context applicationContext;
+    protected final Database database;
+
+    public DatabaseStore(Context applicationContext) {
+        this.applicationContext = applicationContext;
+        this.database = Database.getInstance(applicationContext);
+    }
+
+    /**
+     * @return the alert state of the process, loaded if necessary
+     */
+    public static synchronized AlertEvaluator getEvaluator(Context context) {
+        if (evaluator == null) {
+            evaluator = new AlertEvaluator(ServiceUpdateReceiver.CLOCK, MainActivity.REACT_INTERVAL_MS);
+            int count = Database.getInstance(context).loadAlertStates(evaluator);
+            Log.i(TAG, "Loaded alert state of " + count + " urls");
+        }
+        return evaluator;
+    }
+
+    /**
+     * Forget the alert state of an edited or deleted url. The caller resets the persisted state.
+     */
+    public static synchronized void forget(long id) {
+        if (evaluator != null) {
+            evaluator.remove(id);
+        }
+    }
+
+    @Override
+    public void record(List<CheckResult> batch, long now) {
+        Log.i(TAG, "Updating database with " + batch.size() + " results");
+        boolean networkConnected = NetworkState.getInstance(applicationContext).isConnected();
+        AlertEvaluator evaluator = getEvaluator(applicationContext);
+        SQLiteDatabase base = database.get();
+        List<History.Sample> samples = new ArrayList<>(batch.size());
+        Map<Long, ProbeEngine.Timing> timings = new HashMap<>();
+        long startTime = SystemClock.elapsedRealtime();
+        base.beginTransaction();
+        try {
+            for (CheckResult result : batch) {
+                long id = result.endpoint.id;
+                Log.i(TAG, "Recording " + id + ": " + result.result);
+                int code = result.getCode();
+                if (code != 0) {
+                    timings.put(id, result.timing);
+                }
+                /* trust 200 OK no matter what */
+                if (result.isOk()) {
+                    database.updateOk(id, now);
+                    samples.add(new History.Sample(id, now, code, true, result.timing.totalMs));
+                    evaluator.record(id, true, now);
+                } else if (networkConnected || result.probeType == ProbeEngine.PROBE_PUSH) {
+                    /* A missed heartbeat is not a probe that the lost network could have failed */
+                    database.updateFail(id, now);
+                    samples.add(new History.Sample(id, now, code, false, result.timing.totalMs));
+                    evaluator.record(id, false, now);
+                } else {
+                    Log.w(TAG, "Network is no longer connected, ignoring failure");
+                    continue;
+                }
+                if (result.probeType == ProbeEngine.PROBE_HTTP) {
+                    database.updateHttpCheck(id, now);
+                }
+            }
+            database.history().record(samples);
+            for (Map.Entry<Long, Boolean> slow : database.latencyStats().record(timings, now).entrySet()) {
+                evaluator.setSlow(slow.getKey(), slow.getValue());
+            }
+            updateAlertStates(evaluator.drainTransitions());
+            base.setTransactionSuccessful();
+        } finally {
+            base.endTransaction();
+            DB_WRITE.record(SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Record heartbeats as OK results. A url that sends heartbeats often gets one result per
+     * call however many heartbeats it sent, so the cost follows the number of urls.
+     *
+     * @param seen time of the latest heartbeat of each url, by id
+     * @return whether the alert state of a url changed
+     */
+    public boolean recordHeartbeats(Map<Long, Long> seen) {
+        Log.i(TAG, "Updating database with heartbeats of " + seen.size() + " urls");
+        AlertEvaluator evaluator = getEvaluator(applicationContext);
+        SQLiteDatabase base = database.get();
+        List<History.Sample> samples = new ArrayList<>(seen.size());
+        long startTime = SystemClock.elapsedRealtime();
+        base.beginTransaction();
+        try {
+            for (Map.Entry<Long, Long> heartbeat : seen.entrySet()) {
+                long id = heartbeat.getKey();
+                long time = heartbeat.getValue();
+                database.updateOk(id, time);
+                samples.add(new History.Sample(id, time, 0, true, 0));
+                evaluator.record(id, true, time);
+            }
+            database.history().record(samples);
+            List<AlertEvaluator.Transition> transitions = evaluator.drainTransitions();
+            updateAlertStates(transitions);
+            base.setTransactionSuccessful();
+            return !transitions.isEmpty();
+        } finally {
+            base.endTransaction();
+            DB_WRITE.record(SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    @Override
+    public void saveAlertStates(List<AlertEvaluator.Transition> transitions) {
+        SQLiteDatabase base = database.get();
+        base.beginTransaction();
+        try {
+            updateAlertStates(transitions);
+            base.setTransactionSuccessful();
+        } finally {
+            base.endTransaction();
+        }
+    }
+
+    protected void updateAlertStates(List<AlertEvaluator.Transition> transitions) {
+        for (AlertEvaluator.Transition transition : transitions) {
+            Log.i(TAG, "Alert state of " + transition.id + " is now " + transition.state);
+            database.updateAlertState(transition.id, transition.state);
+        }
+    }
+}
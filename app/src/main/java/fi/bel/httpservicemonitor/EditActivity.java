@@ -6,20 +6,49 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
 
-public class EditActivity extends Activity implements View.OnClickListener {
+public class EditActivity extends Activity implements View.OnClickListener, AdapterView.OnItemSelectedListener {
     protected static final String TAG = EditActivity.class.getSimpleName();
 
     protected SQLiteDatabase state;
 
     protected long id;
 
+    /** Token of the row, or null if it has none */
+    protected String savedToken;
+
+    /** Token to save if the row sends heartbeats */
+    protected String heartbeatToken;
+
     protected EditText nameField;
 
     protected EditText addressField;
 
+    protected EditText checkIntervalField;
+
+    /** Position is the probe type */
+    protected Spinner probeTypeField;
+
+    protected TextView heartbeatPathView;
+
+    protected EditText httpIntervalField;
+
+    protected EditText latencyAlertFactorField;
+
+    protected CheckBox headOnlyField;
+
+    protected EditText bodyPatternsField;
+
+    protected EditText bodyMaxBytesField;
+
+    protected TextView latencyView;
+
     protected Button saveButton;
 
     protected Button deleteButton;
@@ -27,41 +56,78 @@ public class EditActivity extends Activity implements View.OnClickListener {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        state = MainActivity.openDatabase(this);
+        state = Database.getInstance(this).get();
 
         setContentView(R.layout.activity_edit);
         nameField = (EditText) findViewById(R.id.name);
         addressField = (EditText) findViewById(R.id.address);
+        checkIntervalField = (EditText) findViewById(R.id.check_interval);
+        probeTypeField = (Spinner) findViewById(R.id.probe_type);
+        heartbeatPathView = (TextView) findViewById(R.id.heartbeat_path);
+        httpIntervalField = (EditText) findViewById(R.id.http_interval);
+        latencyAlertFactorField = (EditText) findViewById(R.id.latency_alert_factor);
+        headOnlyField = (CheckBox) findViewById(R.id.head_only);
+        bodyPatternsField = (EditText) findViewById(R.id.body_patterns);
+        bodyMaxBytesField = (EditText) findViewById(R.id.body_max_bytes);
+        latencyView = (TextView) findViewById(R.id.latency);
         saveButton = (Button) findViewById(R.id.save);
         deleteButton = (Button) findViewById(R.id.delete);
 
         id = getIntent().getLongExtra("id", 0);
         if (id != 0) {
-            try (Cursor cursor = state.rawQuery("select name, address from url where _id = ?",
+            try (Cursor cursor = state.rawQuery("select name, address, latencyAlertFactor, checkInterval, headOnly, bodyPatterns, bodyMaxBytes, probeType, httpInterval, heartbeatToken from url where _id = ?",
                     new String[] { String.valueOf(id) })) {
                 if (cursor.moveToNext()) {
                     nameField.setText(cursor.getString(0));
                     addressField.setText(cursor.getString(1));
+                    if (cursor.getDouble(2) != 0) {
+                        latencyAlertFactorField.setText(cursor.getString(2));
+                    }
+                    checkIntervalField.setText(String.valueOf(cursor.getLong(3) / 60000));
+                    headOnlyField.setChecked(cursor.getInt(4) != 0);
+                    bodyPatternsField.setText(cursor.getString(5));
+                    bodyMaxBytesField.setText(String.valueOf(cursor.getInt(6)));
+                    probeTypeField.setSelection(cursor.getInt(7));
+                    httpIntervalField.setText(String.valueOf(cursor.getLong(8) / 60000));
+                    savedToken = cursor.getString(9);
                 }
             }
+
+            StringBuilder latency = new StringBuilder();
+            LatencyHistogram[] histograms = Database.getInstance(this).latencyStats().histograms(id);
+            for (int i = 0; i < histograms.length; i++) {
+                latency.append(LatencyStats.PHASES[i]).append(": ").append(histograms[i]).append('\n');
+            }
+            latencyView.setText(latency);
         } else {
             deleteButton.setVisibility(View.GONE);
         }
+        heartbeatToken = savedToken != null ? savedToken : HeartbeatService.newToken();
+        heartbeatPathView.setText(getString(R.string.heartbeat_path,
+                MainActivity.preferences(this).getInt("heartbeatPort", MainActivity.HEARTBEAT_PORT), heartbeatToken));
+        probeTypeField.setOnItemSelectedListener(this);
 
         saveButton.setOnClickListener(this);
         deleteButton.setOnClickListener(this);
     }
 
+    /** For probe type selection -> show where heartbeats go */
     @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        state.close();
+    public void onItemSelected(AdapterView<?> adapterView, View view, int pos, long l) {
+        heartbeatPathView.setVisibility(pos == ProbeEngine.PROBE_PUSH ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public void onNothingSelected(AdapterView<?> adapterView) {
     }
 
     @Override
     public void onClick(View view) {
         if (view == deleteButton) {
             state.execSQL("delete from url where _id = ?", new Object[] { id });
+            History.clear(state, id);
+            LatencyStats.clear(state, id);
+            DatabaseStore.forget(id);
         }
 
         if (view == saveButton) {
@@ -74,15 +140,87 @@ public class EditActivity extends Activity implements View.OnClickListener {
                 return;
             }
 
+            long checkInterval;
+            try {
+                checkInterval = Long.parseLong(checkIntervalField.getText().toString()) * 60000;
+            } catch (NumberFormatException nfe) {
+                checkInterval = 0;
+            }
+            if (checkInterval <= 0) {
+                checkIntervalField.setError(getString(R.string.check_interval));
+                return;
+            }
+
+            int probeType = probeTypeField.getSelectedItemPosition();
+            if (probeType == ProbeEngine.PROBE_TLS && !addressField.getText().toString().regionMatches(true, 0, "https:", 0, 6)) {
+                addressField.setError(getString(R.string.tls_needs_https));
+                return;
+            }
+
+            long httpInterval;
+            try {
+                httpInterval = Long.parseLong(httpIntervalField.getText().toString()) * 60000;
+            } catch (NumberFormatException nfe) {
+                httpInterval = 0;
+            }
+            if (httpInterval <= 0) {
+                httpIntervalField.setError(getString(R.string.http_interval));
+                return;
+            }
+
+            double latencyAlertFactor = 0;
+            if (latencyAlertFactorField.getText().length() != 0) {
+                try {
+                    latencyAlertFactor = Double.parseDouble(latencyAlertFactorField.getText().toString());
+                } catch (NumberFormatException nfe) {
+                    latencyAlertFactor = -1;
+                }
+                if (latencyAlertFactor <= 1) {
+                    latencyAlertFactorField.setError(getString(R.string.latency_alert_factor));
+                    return;
+                }
+            }
+
+            int bodyMaxBytes;
+            try {
+                bodyMaxBytes = Integer.parseInt(bodyMaxBytesField.getText().toString());
+            } catch (NumberFormatException nfe) {
+                bodyMaxBytes = 0;
+            }
+            if (bodyMaxBytes <= 0) {
+                bodyMaxBytesField.setError(getString(R.string.body_max_bytes));
+                return;
+            }
+
+            String bodyPatterns = bodyPatternsField.getText().toString();
+            try {
+                BodyRule.parse(bodyPatterns, bodyMaxBytes);
+            } catch (IllegalArgumentException iae) {
+                bodyPatternsField.setError(iae.getMessage());
+                return;
+            }
+            int headOnly = headOnlyField.isChecked() ? 1 : 0;
+            /* A row that stops sending heartbeats keeps its token, in case it starts again */
+            String token = probeType == ProbeEngine.PROBE_PUSH ? heartbeatToken : savedToken;
+
             if (id == 0) {
-                state.execSQL("insert into url (name, address, lastOk, lastCheck, status) values (?, ?, 0, 0, 'NEW')",
-                        new Object[] { nameField.getText(), addressField.getText() });
+                state.execSQL("insert into url (name, address, lastOk, lastCheck, status, latencyAlertFactor, checkInterval, nextCheck, headOnly, bodyPatterns, bodyMaxBytes, probeType, httpInterval, heartbeatToken) values (?, ?, 0, 0, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                        new Object[] { nameField.getText(), addressField.getText(), Database.STATUS_NEW, latencyAlertFactor,
+                                checkInterval, Database.getInstance(this).placeCheck(checkInterval, 0), headOnly, bodyPatterns, bodyMaxBytes,
+                                probeType, httpInterval, token });
             } else {
-                state.execSQL("update url set name = ?, address = ?, lastOk = 0, lastCheck = 0, status = 'EDIT' where _id = ?",
-                        new Object[] { nameField.getText(), addressField.getText(), id });
+                state.execSQL("update url set name = ?, address = ?, lastOk = 0, lastCheck = 0, status = ?, latencyAlertFactor = ?, checkInterval = ?, nextCheck = ?, headOnly = ?, bodyPatterns = ?, bodyMaxBytes = ?, alertState = ?, probeType = ?, httpInterval = ?, lastHttpCheck = 0, heartbeatToken = ? where _id = ?",
+                        new Object[] { nameField.getText(), addressField.getText(), Database.STATUS_EDIT, latencyAlertFactor,
+                                checkInterval, Database.getInstance(this).placeCheck(checkInterval, id), headOnly, bodyPatterns, bodyMaxBytes,
+                                AlertEvaluator.STATE_OK, probeType, httpInterval, token, id });
+                History.clear(state, id);
+                LatencyStats.clear(state, id);
+                DatabaseStore.forget(id);
             }
         }
 
+        MainActivity.initializeAlarm(this);
+        HeartbeatService.update(this);
         sendBroadcast(new Intent("fi.bel.httpservicemonitor.Refresh"));
         finish();
     }
@@ -0,0 +1,164 @@
+package fi.bel.httpservicemonitor;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The user editable settings of one url, as they appear in import and export files. The
+ * field names double as CSV column names and JSON keys.
+ */
+public class EndpointDefinition {
+    public static final String NAME = "name";
+    public static final String ADDRESS = "address";
+    public static final String CHECK_INTERVAL_MINUTES = "checkIntervalMinutes";
+    public static final String LATENCY_ALERT_FACTOR = "latencyAlertFactor";
+    public static final String HEAD_ONLY = "headOnly";
+    public static final String BODY_PATTERNS = "bodyPatterns";
+    public static final String BODY_MAX_BYTES = "bodyMaxBytes";
+    public static final String PROBE_TYPE = "probeType";
+    public static final String HTTP_INTERVAL_MINUTES = "httpIntervalMinutes";
+    public static final String HEARTBEAT_TOKEN = "heartbeatToken";
+
+    /** Column order of exported CSV files */
+    public static final String[] COLUMNS = {
+            NAME, ADDRESS, CHECK_INTERVAL_MINUTES, LATENCY_ALERT_FACTOR, HEAD_ONLY, BODY_PATTERNS, BODY_MAX_BYTES,
+            PROBE_TYPE, HTTP_INTERVAL_MINUTES, HEARTBEAT_TOKEN
+    };
+
+    /** Values of the probe type field, indexed by ProbeEngine probe type */
+    protected static final String[] PROBE_TYPES = { "http", "tcp", "tls", "push" };
+
+    public String name;
+    public String address;
+    public long checkIntervalMinutes = MainActivity.CHECK_INTERVAL_MS / 60000;
+    public double latencyAlertFactor;
+    public boolean headOnly;
+    public String bodyPatterns;
+    public int bodyMaxBytes = BodyRule.DEFAULT_MAX_BYTES;
+    /** ProbeEngine probe type, or -1 if the file named an unknown one */
+    public int probeType = ProbeEngine.PROBE_HTTP;
+    public long httpIntervalMinutes = MainActivity.HTTP_INTERVAL_MS / 60000;
+    public String heartbeatToken;
+
+    /**
+     * Set a field by its name. Unknown names are ignored, so that files may carry extra columns.
+     *
+     * @throws NumberFormatException if a numeric field does not parse
+     */
+    public void set(String field, String value) {
+        if (value == null) {
+            return;
+        }
+        value = value.trim();
+        switch (field) {
+            case NAME:
+                name = value;
+                break;
+            case ADDRESS:
+                address = value;
+                break;
+            case CHECK_INTERVAL_MINUTES:
+                if (!value.isEmpty()) {
+                    checkIntervalMinutes = Long.parseLong(value);
+                }
+                break;
+            case LATENCY_ALERT_FACTOR:
+                latencyAlertFactor = value.isEmpty() ? 0 : Double.parseDouble(value);
+                break;
+            case HEAD_ONLY:
+                headOnly = value.equals("1") || value.equalsIgnoreCase("true");
+                break;
+            case BODY_PATTERNS:
+                bodyPatterns = value.isEmpty() ? null : value;
+                break;
+            case BODY_MAX_BYTES:
+                if (!value.isEmpty()) {
+                    bodyMaxBytes = Integer.parseInt(value);
+                }
+                break;
+            case PROBE_TYPE:
+                probeType = value.isEmpty() ? ProbeEngine.PROBE_HTTP : Arrays.asList(PROBE_TYPES).indexOf(value.toLowerCase(Locale.ROOT));
+                break;
+            case HTTP_INTERVAL_MINUTES:
+                if (!value.isEmpty()) {
+                    httpIntervalMinutes = Long.parseLong(value);
+                }
+                break;
+            case HEARTBEAT_TOKEN:
+                heartbeatToken = value.isEmpty() ? null : value;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @param field field name
+     * @return value of the field as text, or an empty string for no value
+     */
+    public String get(String field) {
+        switch (field) {
+            case NAME:
+                return name != null ? name : "";
+            case ADDRESS:
+                return address != null ? address : "";
+            case CHECK_INTERVAL_MINUTES:
+                return String.valueOf(checkIntervalMinutes);
+            case LATENCY_ALERT_FACTOR:
+                return latencyAlertFactor != 0 ? String.valueOf(latencyAlertFactor) : "";
+            case HEAD_ONLY:
+                return headOnly ? "1" : "0";
+            case BODY_PATTERNS:
+                return bodyPatterns != null ? bodyPatterns : "";
+            case BODY_MAX_BYTES:
+                return String.valueOf(bodyMaxBytes);
+            case PROBE_TYPE:
+                return PROBE_TYPES[probeType];
+            case HTTP_INTERVAL_MINUTES:
+                return String.valueOf(httpIntervalMinutes);
+            case HEARTBEAT_TOKEN:
+                return heartbeatToken != null ? heartbeatToken : "";
+            default:
+                throw new IllegalArgumentException("Unknown field: " + field);
+        }
+    }
+
+    /**
+     * Apply the same rules as EditActivity, except that the name may be left out; a url
+     * without one is named by its address when it is imported.
+     *
+     * @return null if the definition can be stored, otherwise the reason why not
+     */
+    public String validate() {
+        if (address == null || address.isEmpty()) {
+            return "address is required";
+        }
+        if (checkIntervalMinutes <= 0) {
+            return "check interval must be positive";
+        }
+        if (latencyAlertFactor != 0 && latencyAlertFactor <= 1) {
+            return "latency alert factor must be more than 1";
+        }
+        if (bodyMaxBytes <= 0) {
+            return "body max bytes must be positive";
+        }
+        if (probeType == -1) {
+            return "probe type must be one of " + Arrays.toString(PROBE_TYPES);
+        }
+        if (probeType == ProbeEngine.PROBE_TLS && !address.regionMatches(true, 0, "https:", 0, 6)) {
+            return "tls probe type needs an https address";
+        }
+        if (httpIntervalMinutes <= 0) {
+            return "http interval must be positive";
+        }
+        if (heartbeatToken != null && !heartbeatToken.matches("[0-9A-Za-z_-]{16,64}")) {
+            return "heartbeat token must be 16 to 64 letters, digits, - or _";
+        }
+        try {
+            BodyRule.parse(bodyPatterns, bodyMaxBytes);
+        } catch (IllegalArgumentException iae) {
+            return iae.getMessage();
+        }
+        return null;
+    }
+}
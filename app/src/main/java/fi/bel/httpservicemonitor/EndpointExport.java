@@ -0,0 +1,120 @@
+package fi.bel.httpservicemonitor;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.JsonWriter;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Exports url definitions to a CSV or JSON file that EndpointImport can read back. Rows are
+ * written as the cursor walks the table.
+ */
+public class EndpointExport extends AsyncTask<Uri, Void, String> {
+    protected static final String TAG = EndpointExport.class.getSimpleName();
+
+    protected final Context context;
+    protected final boolean json;
+    protected int exported;
+
+    /**
+     * @param context some context
+     * @param json true for JSON, false for CSV
+     */
+    public EndpointExport(Context context, boolean json) {
+        this.context = context;
+        this.json = json;
+    }
+
+    @Override
+    protected String doInBackground(Uri... uris) {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(context.getContentResolver().openOutputStream(uris[0]), "UTF-8"));
+             Cursor cursor = Database.getInstance(context).get().rawQuery(
+                     "select name, address, checkInterval, latencyAlertFactor, headOnly, bodyPatterns, bodyMaxBytes, probeType, httpInterval, heartbeatToken from url order by _id",
+                     new String[] {})) {
+            if (json) {
+                writeJson(writer, cursor);
+            } else {
+                writeCsv(writer, cursor);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Export failed", e);
+            return context.getString(R.string.export_failed, e.getMessage());
+        }
+        return context.getString(R.string.export_done, exported);
+    }
+
+    protected static EndpointDefinition read(Cursor cursor) {
+        EndpointDefinition definition = new EndpointDefinition();
+        definition.name = cursor.getString(0);
+        definition.address = cursor.getString(1);
+        definition.checkIntervalMinutes = cursor.getLong(2) / 60000;
+        definition.latencyAlertFactor = cursor.getDouble(3);
+        definition.headOnly = cursor.getInt(4) != 0;
+        definition.bodyPatterns = cursor.getString(5);
+        definition.bodyMaxBytes = cursor.getInt(6);
+        definition.probeType = cursor.getInt(7);
+        definition.httpIntervalMinutes = cursor.getLong(8) / 60000;
+        definition.heartbeatToken = cursor.getString(9);
+        return definition;
+    }
+
+    protected void writeCsv(Writer writer, Cursor cursor) throws IOException {
+        for (int i = 0; i < EndpointDefinition.COLUMNS.length; i++) {
+            writer.write(i == 0 ? "" : ",");
+            writer.write(EndpointDefinition.COLUMNS[i]);
+        }
+        writer.write("\r\n");
+        while (cursor.moveToNext()) {
+            EndpointDefinition definition = read(cursor);
+            for (int i = 0; i < EndpointDefinition.COLUMNS.length; i++) {
+                writer.write(i == 0 ? "" : ",");
+                writer.write(CsvReader.quote(definition.get(EndpointDefinition.COLUMNS[i])));
+            }
+            writer.write("\r\n");
+            exported += 1;
+        }
+    }
+
+    protected void writeJson(Writer writer, Cursor cursor) throws IOException {
+        JsonWriter out = new JsonWriter(writer);
+        out.setIndent("  ");
+        out.beginArray();
+        while (cursor.moveToNext()) {
+            EndpointDefinition definition = read(cursor);
+            out.beginObject();
+            out.name(EndpointDefinition.NAME).value(definition.name);
+            out.name(EndpointDefinition.ADDRESS).value(definition.address);
+            out.name(EndpointDefinition.CHECK_INTERVAL_MINUTES).value(definition.checkIntervalMinutes);
+            if (definition.latencyAlertFactor != 0) {
+                out.name(EndpointDefinition.LATENCY_ALERT_FACTOR).value(definition.latencyAlertFactor);
+            }
+            out.name(EndpointDefinition.HEAD_ONLY).value(definition.headOnly);
+            if (definition.bodyPatterns != null) {
+                out.name(EndpointDefinition.BODY_PATTERNS).value(definition.bodyPatterns);
+            }
+            out.name(EndpointDefinition.BODY_MAX_BYTES).value(definition.bodyMaxBytes);
+            out.name(EndpointDefinition.PROBE_TYPE).value(definition.get(EndpointDefinition.PROBE_TYPE));
+            out.name(EndpointDefinition.HTTP_INTERVAL_MINUTES).value(definition.httpIntervalMinutes);
+            if (definition.heartbeatToken != null) {
+                out.name(EndpointDefinition.HEARTBEAT_TOKEN).value(definition.heartbeatToken);
+            }
+            out.endObject();
+            exported += 1;
+        }
+        out.endArray();
+        out.flush();
+    }
+
+    @Override
+    protected void onPostExecute(String summary) {
+        Toast.makeText(context, summary, Toast.LENGTH_LONG).show();
+    }
+}
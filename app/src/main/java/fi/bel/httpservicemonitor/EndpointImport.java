@@ -0,0 +1,271 @@
+package fi.bel.httpservicemonitor;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Imports url definitions from a CSV or JSON file. The file is read one definition at a time,
+ * so its size does not matter. Rows are inserted in transactions of BATCH_SIZE with a compiled
+ * statement, and a url whose address is already present is skipped.
+ *
+ * CSV files start with a header row naming the columns, see EndpointDefinition. JSON files
+ * hold an array of objects with the same keys.
+ *
+ * The task only holds the application context. Progress goes to an ImportFragment, which
+ * outlives the activity that started the import.
+ */
+public class EndpointImport extends AsyncTask<Uri, Integer, String> {
+    protected static final String TAG = EndpointImport.class.getSimpleName();
+    protected static final int BATCH_SIZE = 500;
+
+    protected static final String INSERT = "insert into url (name, address, lastOk, lastCheck, status, latencyAlertFactor, "
+            + "checkInterval, nextCheck, headOnly, bodyPatterns, bodyMaxBytes, probeType, httpInterval, heartbeatToken) values (?, ?, 0, 0, "
+            + Database.STATUS_NEW + ", ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Definitions in file order.
+     */
+    protected interface Source {
+        /**
+         * @return the next definition, or null at the end
+         * @throws NumberFormatException if a numeric field of the definition does not parse;
+         *         the source can still be read after that
+         */
+        EndpointDefinition next() throws IOException;
+    }
+
+    protected static class CsvSource implements Source {
+        protected final CsvReader reader;
+        protected final String[] columns;
+
+        protected CsvSource(Reader reader) throws IOException {
+            this.reader = new CsvReader(reader);
+            columns = this.reader.readRecord();
+            if (columns == null) {
+                throw new IOException("The file is empty");
+            }
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = columns[i].trim();
+            }
+        }
+
+        @Override
+        public EndpointDefinition next() throws IOException {
+            String[] record = reader.readRecord();
+            if (record == null) {
+                return null;
+            }
+            EndpointDefinition definition = new EndpointDefinition();
+            for (int i = 0; i < Math.min(columns.length, record.length); i++) {
+                definition.set(columns[i], record[i]);
+            }
+            return definition;
+        }
+    }
+
+    protected static class JsonSource implements Source {
+        protected final JsonReader reader;
+
+        protected JsonSource(Reader reader) throws IOException {
+            this.reader = new JsonReader(reader);
+            this.reader.beginArray();
+        }
+
+        @Override
+        public EndpointDefinition next() throws IOException {
+            if (!reader.hasNext()) {
+                reader.endArray();
+                return null;
+            }
+            EndpointDefinition definition = new EndpointDefinition();
+            NumberFormatException failure = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                JsonToken token = reader.peek();
+                if (token == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (token == JsonToken.BOOLEAN) {
+                    definition.set(name, String.valueOf(reader.nextBoolean()));
+                } else if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                    try {
+                        definition.set(name, reader.nextString());
+                    } catch (NumberFormatException nfe) {
+                        /* Finish the object first, so that the next one can be read */
+                        failure = nfe;
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (failure != null) {
+                throw failure;
+            }
+            return definition;
+        }
+    }
+
+    protected final Context applicationContext;
+    protected final ImportFragment progress;
+    protected int imported;
+    protected int duplicates;
+    protected int invalid;
+
+    /**
+     * @param applicationContext application context
+     * @param progress where to show the progress
+     */
+    public EndpointImport(Context applicationContext, ImportFragment progress) {
+        this.applicationContext = applicationContext;
+        this.progress = progress;
+    }
+
+    @Override
+    protected String doInBackground(Uri... uris) {
+        Database database = Database.getInstance(applicationContext);
+        SQLiteDatabase base = database.get();
+        SQLiteStatement insert = base.compileStatement(INSERT);
+        SQLiteStatement exists = base.compileStatement("select count(*) from url where address = ?");
+        /* One scheduler per interval. Each learns the existing checks when it is created, so
+         * checks placed by a scheduler created later are not seen by the earlier ones. */
+        Map<Long, CheckScheduler> schedulers = new HashMap<>();
+
+        try (Reader reader = new BufferedReader(new InputStreamReader(applicationContext.getContentResolver().openInputStream(uris[0]), "UTF-8"))) {
+            Source source = open(reader);
+            base.beginTransaction();
+            try {
+                int inBatch = 0;
+                while (true) {
+                    EndpointDefinition definition;
+                    try {
+                        definition = source.next();
+                    } catch (NumberFormatException nfe) {
+                        invalid += 1;
+                        continue;
+                    }
+                    if (definition == null) {
+                        break;
+                    }
+
+                    String problem = definition.validate();
+                    if (problem != null) {
+                        Log.w(TAG, "Skipping " + definition.address + ": " + problem);
+                        invalid += 1;
+                        continue;
+                    }
+
+                    /* Also catches duplicates within the file, since earlier rows are already inserted */
+                    exists.bindString(1, definition.address);
+                    if (exists.simpleQueryForLong() != 0) {
+                        duplicates += 1;
+                        continue;
+                    }
+
+                    long checkInterval = definition.checkIntervalMinutes * 60000;
+                    CheckScheduler scheduler = schedulers.get(checkInterval);
+                    if (scheduler == null) {
+                        scheduler = database.newScheduler(checkInterval, 0);
+                        schedulers.put(checkInterval, scheduler);
+                    }
+
+                    insert.bindString(1, definition.name != null && !definition.name.isEmpty() ? definition.name : definition.address);
+                    insert.bindString(2, definition.address);
+                    insert.bindDouble(3, definition.latencyAlertFactor);
+                    insert.bindLong(4, checkInterval);
+                    insert.bindLong(5, scheduler.place());
+                    insert.bindLong(6, definition.headOnly ? 1 : 0);
+                    if (definition.bodyPatterns != null) {
+                        insert.bindString(7, definition.bodyPatterns);
+                    } else {
+                        insert.bindNull(7);
+                    }
+                    insert.bindLong(8, definition.bodyMaxBytes);
+                    insert.bindLong(9, definition.probeType);
+                    insert.bindLong(10, definition.httpIntervalMinutes * 60000);
+                    if (definition.heartbeatToken == null && definition.probeType == ProbeEngine.PROBE_PUSH) {
+                        definition.heartbeatToken = HeartbeatService.newToken();
+                    }
+                    if (definition.heartbeatToken != null) {
+                        insert.bindString(11, definition.heartbeatToken);
+                    } else {
+                        insert.bindNull(11);
+                    }
+                    try {
+                        insert.executeInsert();
+                    } catch (SQLiteConstraintException sce) {
+                        Log.w(TAG, "Skipping " + definition.address + ": heartbeat token is already in use");
+                        invalid += 1;
+                        continue;
+                    }
+                    imported += 1;
+
+                    if (++inBatch == BATCH_SIZE) {
+                        base.setTransactionSuccessful();
+                        base.endTransaction();
+                        publishProgress(imported, duplicates, invalid);
+                        base.beginTransaction();
+                        inBatch = 0;
+                    }
+                }
+                base.setTransactionSuccessful();
+            } finally {
+                base.endTransaction();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Import failed", e);
+            return applicationContext.getString(R.string.import_failed, imported, e.getMessage());
+        } finally {
+            insert.close();
+            exists.close();
+        }
+        return applicationContext.getString(R.string.import_done, imported, duplicates, invalid);
+    }
+
+    /**
+     * Tell the format from the first character: JSON files start with an array.
+     */
+    protected static Source open(Reader reader) throws IOException {
+        while (true) {
+            reader.mark(1);
+            int c = reader.read();
+            if (c == -1) {
+                throw new IOException("The file is empty");
+            }
+            if (!Character.isWhitespace(c) && c != '\uFEFF') {
+                reader.reset();
+                return c == '[' ? new JsonSource(reader) : new CsvSource(reader);
+            }
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        progress.setMessage(applicationContext.getString(R.string.import_progress, values[0], values[1], values[2]));
+    }
+
+    @Override
+    protected void onPostExecute(String summary) {
+        progress.finish();
+        Toast.makeText(applicationContext, summary, Toast.LENGTH_LONG).show();
+        MainActivity.initializeAlarm(applicationContext);
+        HeartbeatService.update(applicationContext);
+        applicationContext.sendBroadcast(new Intent("fi.bel.httpservicemonitor.Refresh"));
+    }
+}
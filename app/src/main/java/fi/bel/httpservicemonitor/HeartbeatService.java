@@ -0,0 +1,212 @@
+package fi.bel.httpservicemonitor;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps a HeartbeatListener running for the urls that send heartbeats. It runs in the
+ * foreground, so that it is not killed while the device is idle, and writes the heartbeats
+ * received down every FLUSH_INTERVAL_MS; the listener itself never waits for the database.
+ *
+ * Whether a url has missed its heartbeats is decided by ServiceUpdateReceiver when the url
+ * comes due, from lastOk and the heartbeats not yet written down.
+ */
+public class HeartbeatService extends Service {
+    protected static final String TAG = HeartbeatService.class.getSimpleName();
+    protected static final int NOTIFICATION_ID = 3;
+    protected static final long FLUSH_INTERVAL_MS = 15000;
+    protected static final int TOKEN_BYTES = 16;
+    protected static final long CLOSE_WAIT_MS = 2000;
+    protected static final SecureRandom RANDOM = new SecureRandom();
+
+    protected static volatile HeartbeatListener listener;
+    /** Close of the listener of a destroyed instance, which still holds the port until done */
+    protected static Future<?> closing;
+
+    /** Loads the tokens and writes the heartbeats down, in that order */
+    protected ScheduledExecutorService executor;
+
+    /**
+     * Start or stop the service to match the preferences, and make a running one reload the
+     * tokens. Call after the urls have changed.
+     *
+     * @param context some context
+     */
+    public static void update(Context context) {
+        SharedPreferences prefs = MainActivity.preferences(context);
+        Intent intent = new Intent(context, HeartbeatService.class);
+        if (prefs.getBoolean("active", false) && prefs.getBoolean("heartbeats", false)) {
+            context.startService(intent);
+        } else {
+            context.stopService(intent);
+        }
+    }
+
+    /**
+     * @param id url id
+     * @return wall time of the latest heartbeat of the url received by this process, or 0
+     */
+    public static long lastSeen(long id) {
+        HeartbeatListener running = listener;
+        return running != null ? running.lastSeen(id) : 0;
+    }
+
+    /**
+     * @return a new random token, for the path a url sends its heartbeats to
+     */
+    public static String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (listener == null) {
+            int port = MainActivity.preferences(this).getInt("heartbeatPort", MainActivity.HEARTBEAT_PORT);
+            awaitClosing();
+            try {
+                HeartbeatListener started = new HeartbeatListener(ServiceUpdateReceiver.CLOCK, new InetSocketAddress(port));
+                started.start();
+                listener = started;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot listen for heartbeats on port " + port, e);
+                stopSelf();
+                return START_NOT_STICKY;
+            }
+            Log.i(TAG, "Listening for heartbeats on port " + port);
+
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, TAG + "-writer");
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    HeartbeatListener running = listener;
+                    if (running != null) {
+                        flush(running);
+                    }
+                }
+            }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            Notification.Builder nb = new Notification.Builder(this);
+            nb.setSmallIcon(R.drawable.ic_launcher);
+            nb.setContentTitle(getString(R.string.app_name));
+            nb.setContentText(getString(R.string.heartbeat_listening, port));
+            nb.setContentIntent(PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0));
+            startForeground(NOTIFICATION_ID, nb.build());
+        }
+
+        /* Urls may have been added, edited or deleted */
+        final HeartbeatListener running = listener;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<Long, String> tokens = Database.getInstance(getApplicationContext()).heartbeatTokens();
+                running.setTokens(tokens);
+                Log.i(TAG, "Accepting heartbeats of " + tokens.size() + " urls");
+            }
+        });
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        final HeartbeatListener stopped = listener;
+        listener = null;
+        if (stopped != null) {
+            /* Close and write down what came in since the last flush, off the main thread */
+            closing = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stopped.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to close the listener", e);
+                    }
+                }
+            });
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush(stopped);
+                }
+            });
+            executor.shutdown();
+        }
+        stopForeground(true);
+        super.onDestroy();
+    }
+
+    /**
+     * Wait for the listener of a destroyed instance to let go of the port, so that binding it
+     * again does not fail with EADDRINUSE. Runs on the main thread, as does onDestroy().
+     */
+    protected static void awaitClosing() {
+        Future<?> previous = closing;
+        if (previous == null) {
+            return;
+        }
+        closing = null;
+        try {
+            previous.get(CLOSE_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w(TAG, "The previous listener did not close in time", e);
+        }
+    }
+
+    /**
+     * Write down the heartbeats received since the previous flush. Runs on the executor.
+     */
+    protected void flush(HeartbeatListener from) {
+        try {
+            Map<Long, Long> seen = from.drain();
+            if (seen.isEmpty()) {
+                return;
+            }
+            Context applicationContext = getApplicationContext();
+            DatabaseStore store = new DatabaseStore(applicationContext);
+            if (store.recordHeartbeats(seen)) {
+                new AlertNotifier(applicationContext).publish(DatabaseStore.getEvaluator(applicationContext).evaluate(store));
+            }
+
+            /* In case MainActivity is listening, tell it about new data. */
+            applicationContext.sendBroadcast(new Intent("fi.bel.httpservicemonitor.Refresh"));
+        } catch (RuntimeException e) {
+            /* An exception would cancel the periodic flush */
+            Log.e(TAG, "Failed to write heartbeats", e);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package fi.bel.httpservicemonitor;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Check history of each url. Raw samples go to a ring of RAW_SAMPLES slots per url, and every
+ * sample is also folded into hourly and daily aggregates, which are themselves rings of HOURS
+ * and DAYS slots. A slot is overwritten once its period has passed, so the number of rows per
+ * url is bounded no matter how long the monitor has been running.
+ *
+ * Latency statistics only include samples that received an HTTP response; the time it took to
+ * give up on an unreachable service says nothing about the service.
+ */
+public class History {
+    protected static final int RAW_SAMPLES = 288;
+    protected static final int HOURS = 48;
+    protected static final int DAYS = 60;
+    protected static final long HOUR_MS = 1000 * 60 * 60;
+    protected static final long DAY_MS = HOUR_MS * 24;
+
+    /**
+     * Outcome of one check.
+     */
+    public static class Sample {
+        protected final long urlId;
+        protected final long time;
+        protected final int code;
+        protected final boolean ok;
+        protected final long latencyMs;
+
+        /**
+         * @param urlId url._id
+         * @param time wall clock time of the check
+         * @param code HTTP status code, or 0 if no HTTP response was received
+         * @param ok whether the check counts as success
+         * @param latencyMs duration of the check
+         */
+        public Sample(long urlId, long time, int code, boolean ok, long latencyMs) {
+            this.urlId = urlId;
+            this.time = time;
+            this.code = code;
+            this.ok = ok;
+            this.latencyMs = latencyMs;
+        }
+    }
+
+    /**
+     * Aggregate of one url over one period, being built in memory.
+     */
+    protected static class Rollup {
+        protected final long urlId;
+        protected final long start;
+        protected int count;
+        protected int failures;
+        protected final LatencyHistogram latency = new LatencyHistogram();
+
+        protected Rollup(long urlId, long start) {
+            this.urlId = urlId;
+            this.start = start;
+        }
+    }
+
+    protected final SQLiteDatabase db;
+    protected final SQLiteStatement nextSeq;
+    protected final SQLiteStatement updateSeq;
+    protected final SQLiteStatement insertSample;
+    protected final SQLiteStatement insertRollup;
+
+    protected History(SQLiteDatabase db) {
+        this.db = db;
+        nextSeq = db.compileStatement("select sampleSeq from url where _id = ?");
+        updateSeq = db.compileStatement("update url set sampleSeq = ? where _id = ?");
+        insertSample = db.compileStatement("insert or replace into sample (urlId, slot, time, code, ok, latency) values (?, ?, ?, ?, ?, ?)");
+        insertRollup = db.compileStatement("insert or replace into rollup "
+                + "(urlId, resolution, slot, start, count, failures, latencyMin, latencyMax, latencyP50, latencyP95, latencyP99, histogram) "
+                + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    /**
+     * Create the history tables. Part of schema version 3.
+     */
+    protected static void createTables(SQLiteDatabase db) {
+        db.execSQL("alter table url add column sampleSeq integer not null default 0");
+        db.execSQL("create table sample (urlId integer not null, slot integer not null, "
+                + "time integer not null, code integer not null, ok integer not null, latency integer not null, "
+                + "primary key (urlId, slot))");
+        db.execSQL("create table rollup (urlId integer not null, resolution integer not null, slot integer not null, "
+                + "start integer not null, count integer not null, failures integer not null, "
+                + "latencyMin integer, latencyMax integer, latencyP50 integer, latencyP95 integer, latencyP99 integer, "
+                + "histogram blob, primary key (urlId, resolution, slot))");
+    }
+
+    /**
+     * Forget all history of an url.
+     */
+    public static void clear(SQLiteDatabase db, long urlId) {
+        db.execSQL("delete from sample where urlId = ?", new Object[] { urlId });
+        db.execSQL("delete from rollup where urlId = ?", new Object[] { urlId });
+    }
+
+    /**
+     * Store a batch of samples. Call within a transaction.
+     *
+     * @param samples outcomes to record
+     */
+    public synchronized void record(List<Sample> samples) {
+        Map<String, Rollup> hours = new LinkedHashMap<>();
+        Map<String, Rollup> days = new LinkedHashMap<>();
+
+        for (Sample sample : samples) {
+            nextSeq.bindLong(1, sample.urlId);
+            long seq = nextSeq.simpleQueryForLong();
+            updateSeq.bindLong(1, seq + 1);
+            updateSeq.bindLong(2, sample.urlId);
+            updateSeq.executeUpdateDelete();
+
+            insertSample.bindLong(1, sample.urlId);
+            insertSample.bindLong(2, seq % RAW_SAMPLES);
+            insertSample.bindLong(3, sample.time);
+            insertSample.bindLong(4, sample.code);
+            insertSample.bindLong(5, sample.ok ? 1 : 0);
+            insertSample.bindLong(6, sample.latencyMs);
+            insertSample.executeInsert();
+
+            add(hours, sample, HOUR_MS);
+            add(days, sample, DAY_MS);
+        }
+
+        store(hours, HOUR_MS, HOURS);
+        store(days, DAY_MS, DAYS);
+    }
+
+    protected static String key(long urlId, long start) {
+        return urlId + "/" + start;
+    }
+
+    protected static void add(Map<String, Rollup> rollups, Sample sample, long resolution) {
+        long start = sample.time - sample.time % resolution;
+        String key = key(sample.urlId, start);
+        Rollup rollup = rollups.get(key);
+        if (rollup == null) {
+            rollup = new Rollup(sample.urlId, start);
+            rollups.put(key, rollup);
+        }
+        rollup.count += 1;
+        if (!sample.ok) {
+            rollup.failures += 1;
+        }
+        if (sample.code != 0) {
+            rollup.latency.record(sample.latencyMs);
+        }
+    }
+
+    /**
+     * Merge the new aggregates with whatever their slots hold for the same periods, or replace
+     * the slots that hold an older period.
+     *
+     * The slots are read with one query for the whole batch. A compiled statement can only
+     * return a single value, and the SQLite of older Android versions has no upsert.
+     */
+    protected void store(Map<String, Rollup> rollups, long resolution, int slots) {
+        if (rollups.isEmpty()) {
+            return;
+        }
+        Set<Long> urlIds = new HashSet<>();
+        Set<Long> starts = new HashSet<>();
+        for (Rollup rollup : rollups.values()) {
+            urlIds.add(rollup.urlId);
+            starts.add(rollup.start);
+        }
+        try (Cursor cursor = db.rawQuery("select urlId, start, count, failures, histogram from rollup where resolution = " + resolution
+                + " and start in " + list(starts) + " and urlId in " + list(urlIds), new String[] {})) {
+            while (cursor.moveToNext()) {
+                Rollup rollup = rollups.get(key(cursor.getLong(0), cursor.getLong(1)));
+                if (rollup != null) {
+                    rollup.count += cursor.getInt(2);
+                    rollup.failures += cursor.getInt(3);
+                    rollup.latency.merge(LatencyHistogram.fromBytes(cursor.getBlob(4)));
+                }
+            }
+        }
+
+        for (Rollup rollup : rollups.values()) {
+            write(rollup, resolution, slots);
+        }
+    }
+
+    protected static String list(Set<Long> values) {
+        StringBuilder list = new StringBuilder("(");
+        for (long value : values) {
+            if (list.length() > 1) {
+                list.append(", ");
+            }
+            list.append(value);
+        }
+        return list.append(")").toString();
+    }
+
+    protected void write(Rollup rollup, long resolution, int slots) {
+        long slot = rollup.start / resolution % slots;
+        LatencyHistogram latency = rollup.latency;
+        insertRollup.bindLong(1, rollup.urlId);
+        insertRollup.bindLong(2, resolution);
+        insertRollup.bindLong(3, slot);
+        insertRollup.bindLong(4, rollup.start);
+        insertRollup.bindLong(5, rollup.count);
+        insertRollup.bindLong(6, rollup.failures);
+        if (latency.getCount() != 0) {
+            insertRollup.bindLong(7, latency.getMin());
+            insertRollup.bindLong(8, latency.getMax());
+            insertRollup.bindLong(9, latency.percentile(0.50));
+            insertRollup.bindLong(10, latency.percentile(0.95));
+            insertRollup.bindLong(11, latency.percentile(0.99));
+        } else {
+            for (int i = 7; i <= 11; i++) {
+                insertRollup.bindNull(i);
+            }
+        }
+        insertRollup.bindBlob(12, latency.toBytes());
+        insertRollup.executeInsert();
+    }
+}
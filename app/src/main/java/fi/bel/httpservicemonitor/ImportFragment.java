@@ -0,0 +1,87 @@
+package fi.bel.httpservicemonitor;
+
+import android.app.Activity;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.app.ProgressDialog;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+
+/**
+ * Progress dialog of a running EndpointImport. The fragment is retained, so it survives the
+ * activity being recreated, such as on rotation, and the task keeps reporting to it while
+ * whichever activity is current shows the dialog.
+ */
+public class ImportFragment extends DialogFragment {
+    protected static final String TAG = ImportFragment.class.getSimpleName();
+
+    /** Current progress message; null if the import was lost with the process */
+    protected String message;
+
+    /**
+     * Show the progress and start importing.
+     *
+     * @param activity activity to show the progress in
+     * @param uri file to import
+     */
+    public static void start(Activity activity, Uri uri) {
+        ImportFragment fragment = new ImportFragment();
+        fragment.message = activity.getString(R.string.importing);
+        fragment.show(activity.getFragmentManager(), TAG);
+        new EndpointImport(activity.getApplicationContext(), fragment).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, uri);
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+        setCancelable(false);
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        ProgressDialog dialog = new ProgressDialog(getActivity());
+        dialog.setMessage(message);
+        return dialog;
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        if (message == null) {
+            /* Restored after the process died, and the import with it */
+            dismissAllowingStateLoss();
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        /* Keep the dismissal of the old activity's dialog from removing the retained fragment */
+        if (getDialog() != null) {
+            getDialog().setDismissMessage(null);
+        }
+        super.onDestroyView();
+    }
+
+    /**
+     * Called by the import on the UI thread.
+     */
+    protected void setMessage(String message) {
+        this.message = message;
+        ProgressDialog dialog = (ProgressDialog) getDialog();
+        if (dialog != null) {
+            dialog.setMessage(message);
+        }
+    }
+
+    /**
+     * Called by the import on the UI thread when it is done.
+     */
+    protected void finish() {
+        /* Not added if the activity was finished meanwhile */
+        if (isAdded()) {
+            dismissAllowingStateLoss();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package fi.bel.httpservicemonitor;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per url latency histograms for each phase of a probe, and the latency regression rule.
+ *
+ * The histograms decay by halving once they hold DECAY_COUNT observations, so they describe
+ * roughly the last DECAY_COUNT checks and take the same space forever. A url with a nonzero
+ * latencyAlertFactor is flagged slow when the p95 of the current hour exceeds its long-run
+ * p95 by that factor, and by at least LATENCY_ALERT_MIN_MS so that jitter on very fast
+ * services does not count as a regression.
+ */
+public class LatencyStats {
+    protected static final String[] PHASES = { "dns", "connect", "tls", "firstByte", "total" };
+    protected static final long DECAY_COUNT = 1000;
+    protected static final long LATENCY_ALERT_MIN_MS = 100;
+    protected static final int BASELINE_MIN_SAMPLES = 30;
+    protected static final int RECENT_MIN_SAMPLES = 3;
+
+    protected final SQLiteDatabase db;
+    protected final SQLiteStatement insertTiming;
+    protected final SQLiteStatement updateSlow;
+
+    protected LatencyStats(SQLiteDatabase db) {
+        this.db = db;
+        insertTiming = db.compileStatement("insert or replace into timing (urlId, dns, connect, tls, firstByte, total) values (?, ?, ?, ?, ?, ?)");
+        updateSlow = db.compileStatement("update url set slow = ? where _id = ?");
+    }
+
+    /**
+     * Create the timing table and the latency alert columns. Part of schema version 4.
+     */
+    protected static void createTables(SQLiteDatabase db) {
+        db.execSQL("alter table url add column latencyAlertFactor real not null default 0");
+        db.execSQL("alter table url add column slow integer not null default 0");
+        db.execSQL("create table timing (urlId integer primary key, dns blob, connect blob, tls blob, firstByte blob, total blob)");
+    }
+
+    /**
+     * Forget the latency history of an url.
+     */
+    public static void clear(SQLiteDatabase db, long urlId) {
+        db.execSQL("delete from timing where urlId = ?", new Object[] { urlId });
+        db.execSQL("update url set slow = 0 where _id = ?", new Object[] { urlId });
+    }
+
+    /**
+     * Fold timings of answered probes into the histograms and re-evaluate the regression rule.
+     * Call within a transaction, after the batch has been recorded in History.
+     *
+     * @param timings probe timings by url._id
+     * @param now wall clock time of the batch
+     * @return new slow flag of each url whose flag changed, by url._id
+     */
+    public synchronized Map<Long, Boolean> record(Map<Long, ProbeEngine.Timing> timings, long now) {
+        Map<Long, Boolean> changed = new HashMap<>();
+        long hourStart = now - now % History.HOUR_MS;
+        for (Map.Entry<Long, ProbeEngine.Timing> e : timings.entrySet()) {
+            long urlId = e.getKey();
+            ProbeEngine.Timing timing = e.getValue();
+
+            LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+            double factor;
+            boolean slow;
+            long recentCount;
+            long recentP95;
+            try (Cursor cursor = db.rawQuery("select u.latencyAlertFactor, u.slow, r.count - r.failures, r.latencyP95, "
+                            + "t.dns, t.connect, t.tls, t.firstByte, t.total "
+                            + "from url u left join timing t on t.urlId = u._id "
+                            + "left join rollup r on r.urlId = u._id and r.resolution = ? and r.start = ? "
+                            + "where u._id = ?",
+                    new String[] { String.valueOf(History.HOUR_MS), String.valueOf(hourStart), String.valueOf(urlId) })) {
+                if (!cursor.moveToFirst()) {
+                    /* Deleted while it was being checked */
+                    continue;
+                }
+                factor = cursor.getDouble(0);
+                slow = cursor.getInt(1) != 0;
+                recentCount = cursor.getLong(2);
+                recentP95 = cursor.getLong(3);
+                for (int i = 0; i < PHASES.length; i++) {
+                    histograms[i] = LatencyHistogram.fromBytes(cursor.getBlob(4 + i));
+                }
+            }
+
+            LatencyHistogram total = histograms[PHASES.length - 1];
+            long baselineP95 = total.percentile(0.95);
+            boolean nowSlow = factor > 0
+                    && total.getCount() >= BASELINE_MIN_SAMPLES
+                    && recentCount >= RECENT_MIN_SAMPLES
+                    && recentP95 > Math.max(baselineP95 * factor, baselineP95 + LATENCY_ALERT_MIN_MS);
+
+            long[] values = { timing.dnsMs, timing.connectMs, timing.tlsMs, timing.firstByteMs, timing.totalMs };
+            insertTiming.bindLong(1, urlId);
+            for (int i = 0; i < PHASES.length; i++) {
+                histograms[i].record(values[i]);
+                if (histograms[i].getCount() >= DECAY_COUNT) {
+                    histograms[i].decay();
+                }
+                insertTiming.bindBlob(2 + i, histograms[i].toBytes());
+            }
+            insertTiming.executeInsert();
+
+            if (nowSlow != slow) {
+                updateSlow.bindLong(1, nowSlow ? 1 : 0);
+                updateSlow.bindLong(2, urlId);
+                updateSlow.executeUpdateDelete();
+                changed.put(urlId, nowSlow);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return latency histograms of each phase of an url, in PHASES order; empty if unknown
+     */
+    public LatencyHistogram[] histograms(long urlId) {
+        LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+        try (Cursor cursor = db.rawQuery("select dns, connect, tls, firstByte, total from timing where urlId = ?",
+                new String[] { String.valueOf(urlId) })) {
+            boolean found = cursor.moveToFirst();
+            for (int i = 0; i < PHASES.length; i++) {
+                histograms[i] = LatencyHistogram.fromBytes(found ? cursor.getBlob(i) : null);
+            }
+        }
+        return histograms;
+    }
+}
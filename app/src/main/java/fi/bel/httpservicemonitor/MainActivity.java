@@ -2,15 +2,15 @@ package fi.bel.httpservicemonitor;
 
 import android.app.Activity;
 import android.app.AlarmManager;
+import android.app.LoaderManager;
 import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.Loader;
 import android.content.SharedPreferences;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -18,20 +18,26 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.CheckBox;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 
 import java.text.MessageFormat;
 import java.util.Date;
 
-public class MainActivity extends Activity implements ListView.OnItemClickListener, View.OnClickListener {
+public class MainActivity extends Activity implements ListView.OnItemClickListener, View.OnClickListener,
+        LoaderManager.LoaderCallbacks<UrlListLoader.Snapshot> {
     protected static final String TAG = MainActivity.class.getSimpleName();
-    protected static final long CHECK_INTERVAL_MS = 1000 * 60 * 10; /* check every 10 min */
+    protected static final long CHECK_INTERVAL_MS = 1000 * 60 * 10; /* check every 10 min, unless url says otherwise */
     protected static final long REACT_INTERVAL_MS = 1000 * 60 * 55; /* complain after 55 min */
+    protected static final long ALARM_WINDOW_MS = 1000 * 60; /* let the system batch our wakeup within 1 min */
+    protected static final long HTTP_INTERVAL_MS = 1000 * 60 * 60; /* full check of tiered urls every hour, unless url says otherwise */
+    protected static final int HEARTBEAT_PORT = 8089; /* heartbeat listener port, unless preferences say otherwise */
 
-    protected SQLiteDatabase state;
+    /* Request codes of the document pickers */
+    protected static final int REQUEST_IMPORT = 1;
+    protected static final int REQUEST_EXPORT_CSV = 2;
+    protected static final int REQUEST_EXPORT_JSON = 3;
 
     protected ListView listView;
-    protected SimpleCursorAdapter listViewAdapter;
+    protected UrlListAdapter listViewAdapter;
 
     protected CheckBox activeBox;
 
@@ -41,29 +47,49 @@ public class MainActivity extends Activity implements ListView.OnItemClickListen
      * @param context some context
      */
     protected static void initializeAlarm(Context context) {
+        initializeAlarm(context, 0);
+    }
+
+    /**
+     * Set the alarm to go off when the earliest scheduled check is due, and no earlier.
+     *
+     * @param context some context
+     * @param minDelayMs do not wake up sooner than this
+     */
+    protected static void initializeAlarm(Context context, long minDelayMs) {
         PendingIntent checkIntent = PendingIntent.getBroadcast(context, 0, new Intent(context, ServiceUpdateReceiver.class), 0);
 
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        Log.i(TAG, "Telling AlarmManager to cease invoking us.");
-        alarmManager.cancel(checkIntent);
-
         boolean prefs = preferences(context).getBoolean("active", false);
-        if (prefs) {
-            Log.i(TAG, "Telling AlarmManager to run ourselves every " + CHECK_INTERVAL_MS + " ms");
-            alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP, 0, CHECK_INTERVAL_MS, checkIntent);
+        long next = Database.getInstance(context).earliestCheck();
+        if (!prefs || next == -1) {
+            Log.i(TAG, "Telling AlarmManager to cease invoking us.");
+            alarmManager.cancel(checkIntent);
+            return;
         }
+
+        long delay = Math.max(minDelayMs, next - System.currentTimeMillis());
+        Log.i(TAG, "Telling AlarmManager to run ourselves in " + delay + " ms");
+        alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + Math.max(0, delay),
+                ALARM_WINDOW_MS, checkIntent);
     }
 
     /**
-     * Return initialized database handle suitable for querying.
+     * Read the retry policy from preferences, using defaults for missing keys.
      *
      * @param context some context
-     * @return open database
+     * @return policy
      */
-    protected static SQLiteDatabase openDatabase(Context context) {
-        SQLiteDatabase state = context.openOrCreateDatabase("state", Context.MODE_PRIVATE, null);
-        state.execSQL("create table if not exists url (_id integer primary key, name text, address text, lastOk text, lastCheck text, status text)");
-        return state;
+    protected static RetryPolicy retryPolicy(Context context) {
+        SharedPreferences prefs = preferences(context);
+        return new RetryPolicy(
+                prefs.getInt("retryAttempts", RetryPolicy.DEFAULT.maxAttempts),
+                prefs.getLong("retryInitialDelayMs", RetryPolicy.DEFAULT.initialDelayMs),
+                prefs.getFloat("retryMultiplier", (float) RetryPolicy.DEFAULT.multiplier),
+                prefs.getLong("retryMaxDelayMs", RetryPolicy.DEFAULT.maxDelayMs),
+                prefs.getFloat("retryJitter", (float) RetryPolicy.DEFAULT.jitter),
+                prefs.getLong("retryDeadlineMs", RetryPolicy.DEFAULT.deadlineMs)
+        );
     }
 
     protected static SharedPreferences preferences(Context context) {
@@ -76,56 +102,17 @@ public class MainActivity extends Activity implements ListView.OnItemClickListen
         return prefs;
     }
 
-    protected BroadcastReceiver refresh = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            Log.i(TAG, "Main view refresh requested");
-            listViewAdapter.changeCursor(buildCursor());
-
-            long time;
-            try (SQLiteDatabase state = openDatabase(context);
-                Cursor cursor = state.rawQuery("select min(lastCheck) from url where lastCheck != 0", new String[] {})) {
-                cursor.moveToFirst();
-                time = cursor.getLong(0);
-            }
-
-            String text = context.getString(R.string.active);
-            if (time != 0) {
-                text += MessageFormat.format(" {0,date,yyyy-MM-dd HH:mm:ss}",
-                        new Date(time)
-                );
-            } else {
-                text += " -";
-            }
-            activeBox.setText(text);
-        }
-    };
-
-    protected Cursor buildCursor() {
-        return state.rawQuery(
-                "select _id, name, status from url order by _id",
-                new String[] {}
-        );
-    }
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        state = openDatabase(this);
-
         initializeAlarm(this);
+        HeartbeatService.update(this);
 
         setContentView(R.layout.activity_main);
 
         listView = (ListView) findViewById(R.id.listView);
-        listViewAdapter = new SimpleCursorAdapter(
-                this,
-                android.R.layout.simple_list_item_2,
-                buildCursor(),
-                new String[] { "name", "status" }, new int[] { android.R.id.text1, android.R.id.text2 },
-                0
-        );
+        listViewAdapter = new UrlListAdapter(this);
         listView.setOnItemClickListener(this);
         listView.setAdapter(listViewAdapter);
 
@@ -133,15 +120,32 @@ public class MainActivity extends Activity implements ListView.OnItemClickListen
         activeBox.setChecked(preferences(this).getBoolean("active", false));
         activeBox.setOnClickListener(this);
 
-        registerReceiver(refresh, new IntentFilter("fi.bel.httpservicemonitor.Refresh"));
-        sendBroadcast(new Intent("fi.bel.httpservicemonitor.Refresh"));
+        /* The loader reloads by itself on the Refresh broadcast. */
+        getLoaderManager().initLoader(0, null, this);
+    }
+
+    @Override
+    public Loader<UrlListLoader.Snapshot> onCreateLoader(int id, Bundle args) {
+        return new UrlListLoader(this);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<UrlListLoader.Snapshot> loader, UrlListLoader.Snapshot snapshot) {
+        listViewAdapter.update(snapshot.rows, listView);
+
+        String text = getString(R.string.active);
+        if (snapshot.oldestCheck != 0) {
+            text += MessageFormat.format(" {0,date,yyyy-MM-dd HH:mm:ss}",
+                    new Date(snapshot.oldestCheck)
+            );
+        } else {
+            text += " -";
+        }
+        activeBox.setText(text);
     }
 
     @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        unregisterReceiver(refresh);
-        state.close();
+    public void onLoaderReset(Loader<UrlListLoader.Snapshot> loader) {
     }
 
     @Override
@@ -150,6 +154,12 @@ public class MainActivity extends Activity implements ListView.OnItemClickListen
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_heartbeats).setChecked(preferences(this).getBoolean("heartbeats", false));
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         Log.i(TAG, "Handling menu press of item: " + item.getTitle());
@@ -159,16 +169,56 @@ public class MainActivity extends Activity implements ListView.OnItemClickListen
             startActivity(editIntent);
             return true;
         }
+        if (id == R.id.action_import) {
+            Intent open = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            open.addCategory(Intent.CATEGORY_OPENABLE);
+            open.setType("*/*");
+            startActivityForResult(open, REQUEST_IMPORT);
+            return true;
+        }
+        if (id == R.id.action_export_csv || id == R.id.action_export_json) {
+            boolean json = id == R.id.action_export_json;
+            Intent create = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            create.addCategory(Intent.CATEGORY_OPENABLE);
+            create.setType(json ? "application/json" : "text/csv");
+            create.putExtra(Intent.EXTRA_TITLE, json ? "urls.json" : "urls.csv");
+            startActivityForResult(create, json ? REQUEST_EXPORT_JSON : REQUEST_EXPORT_CSV);
+            return true;
+        }
+        if (id == R.id.action_heartbeats) {
+            SharedPreferences.Editor editor = preferences(this).edit();
+            editor.putBoolean("heartbeats", !item.isChecked());
+            editor.apply();
+            HeartbeatService.update(this);
+            return true;
+        }
+        if (id == R.id.action_stats) {
+            startActivity(new Intent(this, StatsActivity.class));
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
+    /** For import and export file pickers */
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        if (requestCode == REQUEST_IMPORT) {
+            ImportFragment.start(this, data.getData());
+        } else if (requestCode == REQUEST_EXPORT_CSV || requestCode == REQUEST_EXPORT_JSON) {
+            new EndpointExport(getApplicationContext(), requestCode == REQUEST_EXPORT_JSON)
+                    .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, data.getData());
+        }
+    }
+
     /** For listview item click -> edit */
     @Override
     public void onItemClick(AdapterView<?> adapterView, View view, int pos, long l) {
         Log.i(TAG, "Handling activation of list view item at position: " + pos);
-        Cursor cursor = (Cursor) adapterView.getItemAtPosition(pos);
         Intent editIntent = new Intent(this, EditActivity.class);
-        editIntent.putExtra("id", cursor.getLong(0));
+        editIntent.putExtra("id", l);
         startActivity(editIntent);
     }
 
@@ -181,6 +231,7 @@ public class MainActivity extends Activity implements ListView.OnItemClickListen
             editor.putBoolean("active", activeBox.isChecked());
             editor.apply();
             initializeAlarm(this);
+            HeartbeatService.update(this);
         }
     }
 }
@@ -0,0 +1,115 @@
+package fi.bel.httpservicemonitor;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide view of the network connectivity. The state is read from ConnectivityManager
+ * once, and after that kept up to date by the connectivity broadcasts, so it can be asked
+ * for every result without a system call.
+ *
+ * Listeners are told when the connectivity changes. If a catch-up was requested while the
+ * network was down, the poll alarm receiver is run as soon as it comes back.
+ */
+public class NetworkState extends BroadcastReceiver {
+    protected static final String TAG = NetworkState.class.getSimpleName();
+    protected static final Metrics.Counter LOST = Metrics.getInstance().counter("network.lost");
+
+    /**
+     * Receiver of connectivity changes. Called on the main thread.
+     */
+    public interface Listener {
+        void onNetworkChanged(boolean connected);
+    }
+
+    protected static NetworkState instance;
+
+    protected final Context applicationContext;
+    protected final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    protected volatile boolean connected;
+    protected boolean catchUp;
+
+    /**
+     * Return the shared state, registering for connectivity broadcasts on first use.
+     *
+     * @param context some context
+     * @return state bound to the application context
+     */
+    public static synchronized NetworkState getInstance(Context context) {
+        if (instance == null) {
+            instance = new NetworkState(context.getApplicationContext());
+            instance.applicationContext.registerReceiver(instance, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+        return instance;
+    }
+
+    protected NetworkState(Context applicationContext) {
+        this.applicationContext = applicationContext;
+        this.connected = query(applicationContext);
+    }
+
+    protected static boolean query(Context context) {
+        ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = manager.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnected();
+    }
+
+    /**
+     * @return whether the network was connected at the last change
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Run the poll alarm receiver when the network comes back, to check what was due.
+     * Call on the main thread.
+     */
+    public void requestCatchUp() {
+        catchUp = true;
+        if (connected) {
+            runCatchUp();
+        }
+    }
+
+    protected void runCatchUp() {
+        catchUp = false;
+        Log.i(TAG, "Network is back, checking what was missed");
+        applicationContext.sendBroadcast(new Intent(applicationContext, ServiceUpdateReceiver.class));
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        boolean now = query(context);
+        if (now == connected) {
+            return;
+        }
+        connected = now;
+        Log.i(TAG, "Network is now " + (now ? "connected" : "disconnected"));
+        if (!now) {
+            LOST.increment();
+        }
+        for (Listener listener : listeners) {
+            listener.onNetworkChanged(now);
+        }
+        if (now && catchUp) {
+            runCatchUp();
+        }
+    }
+}
@@ -1,27 +1,24 @@
 package fi.bel.httpservicemonitor;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.media.RingtoneManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class handles the repeating poll alarm.
@@ -31,69 +28,67 @@ import java.util.Map;
 public class ServiceUpdateReceiver extends BroadcastReceiver {
     protected static final String TAG = ServiceUpdateReceiver.class.getSimpleName();
     protected static final int NETWORK_TIMEOUT_MS = 15000;
-    protected static final int ALERT_NOTIFICATION_ID = 1;
+    protected static final long OFFLINE_RETRY_MS = 1000 * 60 * 5;
+    /** A url that sends heartbeats fails once it has not sent one for this share of its check interval */
+    protected static final long HEARTBEAT_GRACE_PERCENT = 150;
+    protected static final Metrics.Histogram WAKE_LOCK = Metrics.getInstance().histogram("wakeLock.heldMs");
+    protected static final Metrics.Counter WAKE_LOCK_TOTAL = Metrics.getInstance().counter("wakeLock.totalMs");
 
     /**
-     * AsyncTask that eventually resolves to either status code or Exception
+     * Runs the coordinators, so that they do not queue behind, or hold up, the other
+     * AsyncTasks of the app. A coordinator only waits and writes; the probes themselves
+     * run on the ProbeEngine.
      */
-    protected static class CheckServiceTask extends AsyncTask<Void, Void, Object> {
-        protected final String address;
-
-        protected CheckServiceTask(String address) {
-            this.address = address;
+    protected static final Executor COORDINATOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, TAG + "-coordinator");
         }
+    });
 
+    /**
+     * Clock of the device. Elapsed time keeps running while the device sleeps.
+     */
+    protected static final Clock CLOCK = new Clock() {
         @Override
-        protected Object doInBackground(Void... o) {
-            Object result = null;
-            for (int i = 1; i <= 5; i++) {
-                Log.i(TAG, "Poll " + address + " attempt " + i);
-                try {
-                    result = doInBackgroundWithExceptions();
-                } catch (IOException ioe) {
-                    result = ioe;
-                }
-
-                Log.i(TAG, "Poll " + address + " result: " + result);
-                if (result.equals(200)) {
-                    break;
-                }
-
-                try {
-                    Thread.sleep(5000);
-                } catch (InterruptedException ie) {
-                    break;
-                }
-            }
-            return result;
+        public long wallTime() {
+            return System.currentTimeMillis();
         }
 
-        protected int doInBackgroundWithExceptions() throws IOException {
-            URL url = new URL(address);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(NETWORK_TIMEOUT_MS);
-            connection.setReadTimeout(NETWORK_TIMEOUT_MS);
-            connection.setDoOutput(false);
-            connection.setDoInput(false);
-            int code = connection.getResponseCode();
-            connection.disconnect();
-            return code;
+        @Override
+        public long elapsedTime() {
+            return SystemClock.elapsedRealtime();
         }
-    }
+    };
 
     /**
-     * AsyncTask that coordinates other asynctasks and runs its payload once all are ready.
-     * The payload checks the results and maybe triggers alarm and UI updates.
+     * AsyncTask that runs a CheckCycle under a wake lock, and evaluates the alerts once
+     * all results are in.
+     *
+     * If the network goes away during the cycle, the cycle is aborted rather than left to
+     * time out, and the endpoints it did not get to are made due again at their old times,
+     * to be checked as soon as the network is back.
+     *
+     * There is at most one running at a time: endpoints that come due while it runs are
+     * merged into its cycle.
      */
-    protected static class CoordinateWork extends AsyncTask<Void, Void, Void> {
+    protected static class CoordinateWork extends AsyncTask<Void, Void, AlertEvaluator.Alert> implements NetworkState.Listener {
         protected final Context applicationContext;
-        protected final Map<Long, String> addressMap;
-        protected final Map<Long, AsyncTask<Void, Void, Object>> taskMap = new HashMap<>();
+        protected final List<Endpoint> endpoints;
+        /** Scheduled check time of each endpoint before this cycle moved it on, by id */
+        protected final Map<Long, Long> dueTimes = new ConcurrentHashMap<>();
+        protected final MonitorStore store;
+        protected final NetworkState network;
+        protected CheckCycle cycle;
         protected PowerManager.WakeLock lock;
+        protected long lockTime;
 
-        protected CoordinateWork(Context applicationContext, Map<Long, String> addressMap) {
+        protected CoordinateWork(Context applicationContext, List<Endpoint> endpoints, Map<Long, Long> dueTimes) {
             this.applicationContext = applicationContext;
-            this.addressMap = addressMap;
+            this.endpoints = endpoints;
+            this.dueTimes.putAll(dueTimes);
+            this.store = new DatabaseStore(applicationContext);
+            this.network = NetworkState.getInstance(applicationContext);
         }
 
         @Override
@@ -101,144 +96,146 @@ public class ServiceUpdateReceiver extends BroadcastReceiver {
             PowerManager pm = (PowerManager) applicationContext.getSystemService(Context.POWER_SERVICE);
             lock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
             lock.acquire();
+            lockTime = SystemClock.elapsedRealtime();
+
+            cycle = new CheckCycle(ProbeDispatcher.getInstance(), endpoints, MainActivity.retryPolicy(applicationContext),
+                    NETWORK_TIMEOUT_MS, CLOCK, store);
+            network.addListener(this);
+            cycle.start();
+            if (!network.isConnected()) {
+                cycle.abort("network is not connected");
+            }
+        }
 
-            for (Map.Entry<Long, String> e : addressMap.entrySet()) {
-                CheckServiceTask task = new CheckServiceTask(e.getValue());
-                task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-                taskMap.put(e.getKey(), task);
+        /**
+         * Add endpoints to the running cycle. Call on the main thread.
+         *
+         * @return false if the cycle has already finished, and a new one is needed
+         */
+        protected boolean merge(List<Endpoint> more, Map<Long, Long> moreDueTimes) {
+            dueTimes.putAll(moreDueTimes);
+            return cycle.add(more);
+        }
+
+        @Override
+        public void onNetworkChanged(boolean connected) {
+            if (!connected) {
+                cycle.abort("network was disconnected");
             }
         }
 
         @Override
-        protected Void doInBackground(Void... voids) {
-            for (Map.Entry<Long, AsyncTask<Void, Void, Object>> e : taskMap.entrySet()) {
-                try {
-                    Object result = e.getValue().get();
-                    handleResult(e.getKey(), result);
-                } catch (Exception ex) {
-                    Log.e(TAG, "Exception while waiting one task", ex);
-                }
+        protected AlertEvaluator.Alert doInBackground(Void... voids) {
+            try {
+                cycle.await();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Interrupted while waiting for results");
             }
-            return null;
+            if (cycle.isAborted()) {
+                reschedule(cycle.getUnchecked());
+            }
+            /* Only the urls whose state changed cost anything here */
+            return DatabaseStore.getEvaluator(applicationContext).evaluate(store);
         }
 
-        protected void handleResult(Long id, Object result) {
-            Log.i(TAG, "Updating database with " + id + ": " + result);
-            long now = System.currentTimeMillis();
-            try (SQLiteDatabase base = MainActivity.openDatabase(applicationContext)) {
-                /* trust 200 OK no matter what */
-                if (result.equals(200)) {
-                    base.execSQL("update url set lastCheck = ?, lastOk = ?, status = ? where _id = ?",
-                            new Object[]{now, now, "OK", id});
-                } else if (isNetworkConnected(applicationContext)) {
-                    base.execSQL("update url set lastCheck = ?, status = ? where _id = ?",
-                            new Object[]{now, "FAIL", id});
-                } else {
-                    Log.w(TAG, "Network is no longer connected, ignoring failure");
+        /**
+         * Put the endpoints back to when they were due, so that the next run takes them.
+         */
+        protected void reschedule(List<Endpoint> unchecked) {
+            Log.i(TAG, "Cycle aborted with " + unchecked.size() + " of " + cycle.size() + " endpoints unchecked");
+            Database database = Database.getInstance(applicationContext);
+            SQLiteDatabase base = database.get();
+            base.beginTransaction();
+            try {
+                for (Endpoint endpoint : unchecked) {
+                    database.updateNextCheck(endpoint.id, dueTimes.get(endpoint.id));
                 }
+                base.setTransactionSuccessful();
+            } finally {
+                base.endTransaction();
             }
         }
 
         @Override
-        protected void onPostExecute(Void aVoid) {
+        protected void onPostExecute(AlertEvaluator.Alert alert) {
+            if (running == this) {
+                running = null;
+            }
+            network.removeListener(this);
+            if (cycle.isAborted()) {
+                network.requestCatchUp();
+                MainActivity.initializeAlarm(applicationContext, OFFLINE_RETRY_MS);
+            }
+
             /* In case MainActivity is listening, tell it about new data. */
             applicationContext.sendBroadcast(new Intent("fi.bel.httpservicemonitor.Refresh"));
 
-            /* Refresh the view each time we get results. */
-            serviceFaultCheck();
-
-            lock.release();
-        }
-
-        /**
-         * Make ungodly racket if there are failures in any monitored service
-         */
-        protected void serviceFaultCheck() {
-            long lastOkTooOld = System.currentTimeMillis() - MainActivity.REACT_INTERVAL_MS;
-
-            /* First figure out how many are currently in alarm state */
-            long lastOk;
-            int failureCount;
-            int oldFailureCount;
-            try (SQLiteDatabase base = MainActivity.openDatabase(applicationContext)) {
-                try (Cursor cursor = base.rawQuery("select min(lastOk), count(*) from url where status = 'FAIL'",
-                        new String[] {})) {
-                    cursor.moveToFirst();
-                    lastOk = cursor.getLong(0);
-                    failureCount = cursor.getInt(1);
-                }
+            new AlertNotifier(applicationContext).publish(alert);
 
-                /* Then figure out when which are old */
-                try (Cursor cursor = base.rawQuery("select count(*) from url where lastOk < ? and status = 'FAIL'",
-                        new String[] {String.valueOf(lastOkTooOld)})) {
-                    cursor.moveToFirst();
-                    oldFailureCount = cursor.getInt(0);
-                }
-            }
+            Log.i(TAG, ProbeEngine.getInstance().describeSavings());
 
-            NotificationManager nm = (NotificationManager) applicationContext.getSystemService(Context.NOTIFICATION_SERVICE);
-
-            Notification.Builder nb = new Notification.Builder(applicationContext);
-            nb.setPriority(Notification.PRIORITY_HIGH);
-            nb.setWhen(lastOk);
-            nb.setSmallIcon(R.drawable.ic_launcher);
-            nb.setContentTitle("Some services not reachable");
-            nb.setContentText(MessageFormat.format("Problems detected", failureCount));
-            nb.setContentIntent(PendingIntent.getActivity(applicationContext, 0, new Intent(applicationContext, MainActivity.class), 0));
-            nb.setAutoCancel(true);
-
-            if (failureCount == 0) {
-                Log.i(TAG, "No alarm required, everything is now OK");
-                nm.cancel(ALERT_NOTIFICATION_ID);
-            } else if (oldFailureCount == 0) {
-                Log.i(TAG, "Weak alarm required, ongoing failures: " + failureCount);
-                nb.setNumber(failureCount);
-                nb.setLights(0xbbbb00, 100, 400);
-                Notification n = nb.build();
-                nm.notify(ALERT_NOTIFICATION_ID, n);
-            } else {
-                Log.i(TAG, "Strong alarm required, old failures: " + oldFailureCount);
-                /* Make a super obnoxious alert */
-                nb.setNumber(oldFailureCount);
-                nb.setLights(0xff0000, 100, 400);
-                nb.setVibrate(new long[] { 1000, 1000 });
-                nb.setSound(RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM));
-                Notification n = nb.build();
-                n.flags |= Notification.FLAG_INSISTENT;
-                nm.notify(ALERT_NOTIFICATION_ID, n);
-            }
+            lock.release();
+            long heldMs = SystemClock.elapsedRealtime() - lockTime;
+            WAKE_LOCK.record(heldMs);
+            WAKE_LOCK_TOTAL.add(heldMs);
         }
     }
 
+    /** The coordinator whose cycle is running, if any; only used on the main thread */
+    protected static CoordinateWork running;
+
     @Override
     public void onReceive(Context context, Intent intent) {
         Log.i(TAG, "Update request received");
-        if (!isNetworkConnected(context)) {
+        NetworkState network = NetworkState.getInstance(context);
+        if (!network.isConnected()) {
             Log.i(TAG, "Not running, network is not connected.");
+            network.requestCatchUp();
+            MainActivity.initializeAlarm(context, OFFLINE_RETRY_MS);
             return;
         }
 
-        Map<Long, String> addressMap = new HashMap<>();
-        try (SQLiteDatabase base = MainActivity.openDatabase(context);
-            Cursor cursor = base.rawQuery(
-                    "select _id, address from url where lastCheck < ? or status = 'FAIL' order by _id",
-                    new String[] {String.valueOf(System.currentTimeMillis() - MainActivity.CHECK_INTERVAL_MS / 2)})) {
+        /* Take everything due within the alarm window, and move each to its next slot. */
+        long now = System.currentTimeMillis();
+        long until = now + MainActivity.ALARM_WINDOW_MS;
+        List<Endpoint> endpoints = new ArrayList<>();
+        Map<Long, Long> dueTimes = new HashMap<>();
+        Database database = Database.getInstance(context);
+        SQLiteDatabase base = database.get();
+        base.beginTransaction();
+        try (Cursor cursor = database.queryDue(until)) {
             while (cursor.moveToNext()) {
                 long id = cursor.getLong(0);
-                String address = cursor.getString(1);
-                addressMap.put(id, address);
+                database.updateNextCheck(id, CheckScheduler.nextCheck(cursor.getLong(2), until, cursor.getLong(3)));
+                int probeType = cursor.getInt(7);
+                if (probeType == ProbeEngine.PROBE_PUSH) {
+                    long lastHeartbeat = Math.max(cursor.getLong(10), HeartbeatService.lastSeen(id));
+                    if (now - lastHeartbeat < cursor.getLong(3) * HEARTBEAT_GRACE_PERCENT / 100) {
+                        /* Reported in on time; nothing to check */
+                        continue;
+                    }
+                } else if (probeType != ProbeEngine.PROBE_HTTP && now - cursor.getLong(9) >= cursor.getLong(8)) {
+                    /* Time for the full check */
+                    probeType = ProbeEngine.PROBE_HTTP;
+                }
+                endpoints.add(Endpoint.fromColumns(id, cursor.getString(1), probeType, cursor.getInt(4) != 0, cursor.getString(5), cursor.getInt(6)));
+                dueTimes.put(id, cursor.getLong(2));
             }
+            base.setTransactionSuccessful();
+        } finally {
+            base.endTransaction();
         }
+        MainActivity.initializeAlarm(context);
 
-        if (!addressMap.isEmpty()) {
-            new CoordinateWork(context.getApplicationContext(), addressMap)
-                    .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        if (endpoints.isEmpty()) {
+            return;
         }
-    }
-
-    protected static boolean isNetworkConnected(Context context) {
-        ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo activeNetwork = manager.getActiveNetworkInfo();
-        return activeNetwork != null && activeNetwork.isConnected();
+        if (running != null && running.merge(endpoints, dueTimes)) {
+            Log.i(TAG, "Merged " + endpoints.size() + " endpoints into the running cycle");
+            return;
+        }
+        CoordinateWork work = new CoordinateWork(context.getApplicationContext(), endpoints, dueTimes);
+        work.executeOnExecutor(COORDINATOR);
+        running = work;
     }
 }
@@ -0,0 +1,63 @@
+package fi.bel.httpservicemonitor;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.text.MessageFormat;
+import java.util.Date;
+
+/**
+ * Shows the runtime metrics of this process, and shares them as text.
+ */
+public class StatsActivity extends Activity {
+    protected static final String TAG = StatsActivity.class.getSimpleName();
+
+    protected TextView statsView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stats);
+        statsView = (TextView) findViewById(R.id.stats);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        statsView.setText(dump());
+    }
+
+    protected static String dump() {
+        Metrics metrics = Metrics.getInstance();
+        return MessageFormat.format("Since {0,date,yyyy-MM-dd HH:mm:ss}\n", new Date(metrics.getStartTime()))
+                + metrics.dump();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_stats, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.action_refresh) {
+            statsView.setText(dump());
+            return true;
+        }
+        if (id == R.id.action_export) {
+            Intent send = new Intent(Intent.ACTION_SEND);
+            send.setType("text/plain");
+            send.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.app_name) + " metrics");
+            send.putExtra(Intent.EXTRA_TEXT, dump());
+            startActivity(Intent.createChooser(send, getString(R.string.action_export)));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
@@ -0,0 +1,101 @@
+package fi.bel.httpservicemonitor;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adapter of the main list. A reload that only changed the content of some rows rebinds
+ * just those rows, if they are on screen, instead of redrawing the whole list.
+ */
+public class UrlListAdapter extends BaseAdapter {
+    protected final LayoutInflater inflater;
+    protected List<UrlListLoader.Row> rows = new ArrayList<>();
+
+    public UrlListAdapter(Context context) {
+        inflater = LayoutInflater.from(context);
+    }
+
+    /**
+     * Take new rows into use.
+     *
+     * @param newRows rows from the loader; not modified, since the loader may deliver them again
+     * @param listView list showing this adapter
+     */
+    public void update(List<UrlListLoader.Row> newRows, ListView listView) {
+        if (!sameIds(newRows)) {
+            /* Our own copy, since changed rows are later set into it */
+            rows = new ArrayList<>(newRows);
+            notifyDataSetChanged();
+            return;
+        }
+
+        int first = listView.getFirstVisiblePosition();
+        /* Header views would shift the child positions; the main list has none. */
+        for (int i = 0; i < newRows.size(); i++) {
+            UrlListLoader.Row row = newRows.get(i);
+            if (row.sameContent(rows.get(i))) {
+                continue;
+            }
+            rows.set(i, row);
+            View view = listView.getChildAt(i - first);
+            if (view != null) {
+                bind(view, row);
+            }
+        }
+    }
+
+    protected boolean sameIds(List<UrlListLoader.Row> newRows) {
+        if (newRows.size() != rows.size()) {
+            return false;
+        }
+        for (int i = 0; i < newRows.size(); i++) {
+            if (newRows.get(i).id != rows.get(i).id) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return rows.size();
+    }
+
+    @Override
+    public UrlListLoader.Row getItem(int position) {
+        return rows.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return rows.get(position).id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = convertView;
+        if (view == null) {
+            view = inflater.inflate(android.R.layout.simple_list_item_2, parent, false);
+        }
+        bind(view, rows.get(position));
+        return view;
+    }
+
+    protected static void bind(View view, UrlListLoader.Row row) {
+        ((TextView) view.findViewById(android.R.id.text1)).setText(row.name);
+        ((TextView) view.findViewById(android.R.id.text2)).setText(Database.statusName(row.status));
+    }
+}
@@ -0,0 +1,120 @@
+package fi.bel.httpservicemonitor;
+
+import android.content.AsyncTaskLoader;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the rows of the main list on a background thread. The loader listens for the
+ * Refresh broadcast itself, so a finished poll cycle or an edit triggers a reload without
+ * the activity doing any database work on the UI thread.
+ */
+public class UrlListLoader extends AsyncTaskLoader<UrlListLoader.Snapshot> {
+    protected static final String TAG = UrlListLoader.class.getSimpleName();
+
+    /**
+     * One list row, as shown.
+     */
+    public static class Row {
+        public final long id;
+        public final String name;
+        public final int status;
+
+        public Row(long id, String name, int status) {
+            this.id = id;
+            this.name = name;
+            this.status = status;
+        }
+
+        /**
+         * @return whether the row would be drawn the same
+         */
+        public boolean sameContent(Row other) {
+            return id == other.id && status == other.status && (name == null ? other.name == null : name.equals(other.name));
+        }
+    }
+
+    /**
+     * Everything MainActivity displays from the database.
+     */
+    public static class Snapshot {
+        public final List<Row> rows;
+        public final long oldestCheck;
+
+        public Snapshot(List<Row> rows, long oldestCheck) {
+            this.rows = rows;
+            this.oldestCheck = oldestCheck;
+        }
+    }
+
+    protected final BroadcastReceiver refresh = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.i(TAG, "Main view refresh requested");
+            onContentChanged();
+        }
+    };
+
+    protected Snapshot snapshot;
+    protected boolean registered;
+
+    public UrlListLoader(Context context) {
+        super(context);
+    }
+
+    @Override
+    public Snapshot loadInBackground() {
+        Database database = Database.getInstance(getContext());
+        List<Row> rows = new ArrayList<>();
+        try (Cursor cursor = database.get().rawQuery("select _id, name, status from url order by _id", new String[] {})) {
+            while (cursor.moveToNext()) {
+                rows.add(new Row(cursor.getLong(0), cursor.getString(1), cursor.getInt(2)));
+            }
+        }
+        return new Snapshot(rows, database.oldestCheck());
+    }
+
+    @Override
+    public void deliverResult(Snapshot data) {
+        snapshot = data;
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!registered) {
+            getContext().registerReceiver(refresh, new IntentFilter("fi.bel.httpservicemonitor.Refresh"));
+            registered = true;
+        }
+        if (snapshot != null) {
+            deliverResult(snapshot);
+        }
+        if (takeContentChanged() || snapshot == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        onStopLoading();
+        if (registered) {
+            getContext().unregisterReceiver(refresh);
+            registered = false;
+        }
+        snapshot = null;
+    }
+}
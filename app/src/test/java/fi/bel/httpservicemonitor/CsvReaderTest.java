@@ -0,0 +1,60 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CsvReaderTest {
+    protected static CsvReader reader(String text) {
+        return new CsvReader(new StringReader(text));
+    }
+
+    @Test
+    public void plainRecords() throws IOException {
+        CsvReader reader = reader("a,b,c\r\n1,,3\n");
+        assertArrayEquals(new String[] { "a", "b", "c" }, reader.readRecord());
+        assertArrayEquals(new String[] { "1", "", "3" }, reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void quotedFieldsHoldSeparatorsAndQuotes() throws IOException {
+        CsvReader reader = reader("\"a,b\",\"say \"\"hi\"\"\",\"line\r\nbreak\"\n");
+        assertArrayEquals(new String[] { "a,b", "say \"hi\"", "line\r\nbreak" }, reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void blankLinesAreSkippedAndLastLineNeedsNoBreak() throws IOException {
+        CsvReader reader = reader("\n\r\na\n\n\nb");
+        assertArrayEquals(new String[] { "a" }, reader.readRecord());
+        assertArrayEquals(new String[] { "b" }, reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void trailingEmptyField() throws IOException {
+        assertArrayEquals(new String[] { "a", "" }, reader("a,\n").readRecord());
+    }
+
+    @Test(expected = IOException.class)
+    public void unterminatedQuoteFails() throws IOException {
+        reader("\"never closed\n").readRecord();
+    }
+
+    @Test
+    public void quoteRoundTrips() throws IOException {
+        String[] values = { "plain", "a,b", "say \"hi\"", "two\nlines", "" };
+        StringBuilder line = new StringBuilder();
+        for (String value : values) {
+            line.append(line.length() == 0 ? "" : ",").append(CsvReader.quote(value));
+        }
+        assertEquals("plain", CsvReader.quote("plain"));
+        assertArrayEquals(values, reader(line + "\r\n").readRecord());
+    }
+}
@@ -0,0 +1,58 @@
+package fi.bel.httpservicemonitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of accounting for a batch of results and evaluating the alert, with a few percent of
+ * the urls failing, some of them for long. It should not depend on the number of urls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AlertBenchmark {
+    protected static final long REACT_INTERVAL_MS = 1000 * 60 * 55;
+    protected static final int BATCH_SIZE = 100;
+
+    @Param({ "100", "10000" })
+    public int endpointCount;
+
+    protected AlertEvaluator evaluator;
+    protected MemoryStore store;
+    protected int next;
+
+    @Setup
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        evaluator = new AlertEvaluator(Clock.SYSTEM, REACT_INTERVAL_MS);
+        store = new MemoryStore(evaluator);
+        for (int i = 0; i < endpointCount; i++) {
+            if (i % 20 == 0) {
+                long lastOk = i % 40 == 0 ? now - 2 * REACT_INTERVAL_MS : now - 1000;
+                evaluator.load(i, i % 40 == 0 ? AlertEvaluator.STATE_STALE : AlertEvaluator.STATE_FAILING, lastOk, false);
+            } else {
+                evaluator.record(i, true, now);
+            }
+        }
+        evaluator.drainTransitions();
+    }
+
+    @Benchmark
+    public AlertEvaluator.Alert evaluate() {
+        /* A batch of results, every tenth of them a failure */
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            next = (next + 1) % endpointCount;
+            evaluator.record(next, next % 10 != 0, now);
+        }
+        return evaluator.evaluate(store);
+    }
+}
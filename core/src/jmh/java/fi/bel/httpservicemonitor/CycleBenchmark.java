@@ -0,0 +1,61 @@
+package fi.bel.httpservicemonitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall time of a whole check cycle, from submitting the probes to the last batch being
+ * recorded. One endpoint in ten fails, without retries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CycleBenchmark {
+    protected static final RetryPolicy NO_RETRY = new RetryPolicy(1, 0, 1, 0, 0, 0);
+
+    @Param({ "10", "100", "1000" })
+    public int endpointCount;
+
+    protected LocalHttpServer server;
+    protected List<Endpoint> endpoints;
+    protected MemoryStore store;
+    protected ProbeDispatcher dispatcher;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        endpoints = new ArrayList<>();
+        for (int i = 0; i < endpointCount; i++) {
+            /* Distinct query strings, so that nothing can be shared between the probes */
+            endpoints.add(new Endpoint(i, server.url((i % 10 == 0 ? "/fail" : "/ok") + "?" + i), false, null));
+        }
+        /* Every endpoint is on the same local host; only the global limit applies */
+        dispatcher = new ProbeDispatcher(ProbeEngine.getInstance(), Clock.SYSTEM, endpointCount);
+        store = new MemoryStore(new AlertEvaluator(Clock.SYSTEM, 1000 * 60 * 55));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public long cycle() throws InterruptedException {
+        CheckCycle cycle = new CheckCycle(dispatcher, endpoints, NO_RETRY, 5000, Clock.SYSTEM, store);
+        cycle.start();
+        cycle.await();
+        return store.getRecorded();
+    }
+}
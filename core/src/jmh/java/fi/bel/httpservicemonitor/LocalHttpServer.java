@@ -0,0 +1,73 @@
+package fi.bel.httpservicemonitor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process HTTP server for the benchmarks, so that they measure our side of the
+ * connection and not a network.
+ *
+ * /ok answers 200 with a short body, /fail answers 503, and /page answers 200 with a
+ * page of about 16 KB that ends with "</html>".
+ */
+public class LocalHttpServer {
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+
+    protected final HttpServer server;
+    protected final ExecutorService executor;
+
+    public LocalHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        executor = Executors.newFixedThreadPool(8);
+        server.setExecutor(executor);
+
+        StringBuilder page = new StringBuilder("<html><body>\n");
+        while (page.length() < 16 * 1024) {
+            page.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>\n");
+        }
+        page.append("</body></html>\n");
+
+        server.createContext("/ok", respond(200, "OK\n".getBytes(ASCII)));
+        server.createContext("/fail", respond(503, "Service Unavailable\n".getBytes(ASCII)));
+        server.createContext("/page", respond(200, page.toString().getBytes(ASCII)));
+        server.start();
+    }
+
+    protected static HttpHandler respond(final int code, final byte[] body) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.sendResponseHeaders(code, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.sendResponseHeaders(code, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param path request path, starting with /
+     * @return URL of the path on this server
+     */
+    public String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,81 @@
+package fi.bel.httpservicemonitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of single probes, one at a time. Run with the gc profiler, which the build
+ * enables, to see the bytes allocated per probe.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProbeBenchmark {
+    /**
+     * Callback that lets the benchmark thread wait for the result.
+     */
+    protected static class Waiter implements ProbeEngine.Callback {
+        protected final CountDownLatch done = new CountDownLatch(1);
+        protected Object result;
+
+        @Override
+        public void onResult(Object result, ProbeEngine.Timing timing) {
+            this.result = result;
+            done.countDown();
+        }
+
+        protected Object await() throws InterruptedException {
+            done.await();
+            return result;
+        }
+    }
+
+    protected LocalHttpServer server;
+    protected String ok;
+    protected String page;
+    protected BodyRule pageRule;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        ok = server.url("/ok");
+        page = server.url("/page");
+        pageRule = BodyRule.parse("</html>\n!Exception", 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public Object get() throws InterruptedException {
+        Waiter waiter = new Waiter();
+        ProbeEngine.getInstance().submit(ok, 5000, waiter);
+        return waiter.await();
+    }
+
+    @Benchmark
+    public Object head() throws InterruptedException {
+        Waiter waiter = new Waiter();
+        ProbeEngine.getInstance().submit(page, 5000, true, null, waiter);
+        return waiter.await();
+    }
+
+    @Benchmark
+    public Object bodyRule() throws InterruptedException {
+        Waiter waiter = new Waiter();
+        ProbeEngine.getInstance().submit(page, 5000, false, pageRule, waiter);
+        return waiter.await();
+    }
+}
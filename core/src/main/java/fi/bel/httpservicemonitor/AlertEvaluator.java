@@ -0,0 +1,371 @@
+package fi.bel.httpservicemonitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Alert state of every url, kept in memory and updated as each result arrives, so that
+ * evaluating the alerts costs in proportion to what changed rather than to the number of urls.
+ *
+ * A url is OK until it fails; its first failure makes it SUSPECT, and FAIL_THRESHOLD failures
+ * in a row make it FAILING. Once it has not been OK for the react interval, it is STALE, which
+ * is what sounds the strong alarm. Getting back to OK takes RECOVER_THRESHOLD successes in a
+ * row. A url that keeps changing between success and failure is flagged as flapping, and a
+ * flapping url does not sound the strong alarm, only the weak one. Urls flagged for a latency
+ * regression are counted as well; the flag itself is decided by the store, and set here.
+ *
+ * Only the state is persisted, through MonitorStore.saveAlertStates, and only when it changes
+ * between OK, FAILING and STALE. Urls that are not known are taken to be OK.
+ */
+public class AlertEvaluator {
+    /* Alert states, as persisted */
+    public static final int STATE_OK = 0;
+    public static final int STATE_SUSPECT = 1;
+    public static final int STATE_FAILING = 2;
+    public static final int STATE_STALE = 3;
+
+    protected static final int FAIL_THRESHOLD = 2;
+    protected static final int RECOVER_THRESHOLD = 2;
+
+    /* Flap score gains 1 for every change between success and failure, and decays per result. */
+    protected static final double FLAP_DECAY = 0.8;
+    protected static final double FLAP_START = 2.5;
+    protected static final double FLAP_STOP = 1.0;
+
+    public enum Level {
+        NONE, WEAK, STRONG
+    }
+
+    /**
+     * Outcome of an evaluation.
+     */
+    public static class Alert {
+        public final Level level;
+        /** Number of FAILING and STALE urls */
+        public final int failureCount;
+        /** Number of STALE urls */
+        public final int oldFailureCount;
+        /** Oldest time a failing url was last OK */
+        public final long oldestFailure;
+        public final int suspectCount;
+        public final int flappingCount;
+        public final int slowCount;
+        /** Whether a url has started to sound the strong alarm since the last evaluation */
+        public final boolean escalated;
+
+        public Alert(Level level, int failureCount, int oldFailureCount, long oldestFailure, int suspectCount,
+                     int flappingCount, int slowCount, boolean escalated) {
+            this.level = level;
+            this.failureCount = failureCount;
+            this.oldFailureCount = oldFailureCount;
+            this.oldestFailure = oldestFailure;
+            this.suspectCount = suspectCount;
+            this.flappingCount = flappingCount;
+            this.slowCount = slowCount;
+            this.escalated = escalated;
+        }
+    }
+
+    /**
+     * A change of state to persist.
+     */
+    public static class Transition {
+        public final long id;
+        public final int state;
+
+        public Transition(long id, int state) {
+            this.id = id;
+            this.state = state;
+        }
+    }
+
+    protected static class Entry {
+        protected final long id;
+        protected int state;
+        /** Failures in a row while SUSPECT, successes in a row while FAILING or STALE */
+        protected int streak;
+        protected boolean lastResultOk = true;
+        protected double flapScore;
+        protected boolean flapping;
+        /** Last time the url was in OK state */
+        protected long lastGood;
+        /** Whether the url is flagged for a latency regression */
+        protected boolean slow;
+
+        protected Entry(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * When a FAILING url becomes STALE, unless it has changed state since.
+     */
+    protected static class Deadline implements Comparable<Deadline> {
+        protected final Entry entry;
+        protected final long time;
+
+        protected Deadline(Entry entry, long time) {
+            this.entry = entry;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            return time < other.time ? -1 : time > other.time ? 1 : 0;
+        }
+    }
+
+    protected final Clock clock;
+    protected final long reactIntervalMs;
+    protected final Map<Long, Entry> entries = new HashMap<>();
+    protected final int[] counts = new int[4];
+    protected int flappingCount;
+    protected int slowCount;
+    /** Number of STALE urls that are not flapping */
+    protected int loudCount;
+    /** Multiset of lastGood of FAILING and STALE urls, for the oldest failure */
+    protected final TreeMap<Long, Integer> failingSince = new TreeMap<>();
+    protected final PriorityQueue<Deadline> deadlines = new PriorityQueue<>();
+    protected final List<Transition> transitions = new ArrayList<>();
+    protected boolean escalated;
+
+    /**
+     * @param clock time source
+     * @param reactIntervalMs time without OK after which a failing url is STALE
+     */
+    public AlertEvaluator(Clock clock, long reactIntervalMs) {
+        this.clock = clock;
+        this.reactIntervalMs = reactIntervalMs;
+    }
+
+    /**
+     * Restore the persisted state of a url. Only urls that are not OK, or are slow, need to be
+     * restored.
+     *
+     * @param id url id
+     * @param state persisted state
+     * @param lastOk last time the url was OK
+     * @param slow whether the url is flagged for a latency regression
+     */
+    public synchronized void load(long id, int state, long lastOk, boolean slow) {
+        Entry entry = entry(id);
+        leave(entry);
+        entry.state = state;
+        entry.lastGood = lastOk;
+        entry.lastResultOk = state == STATE_OK;
+        entry.slow = slow;
+        enter(entry);
+        if (state == STATE_FAILING) {
+            deadlines.add(new Deadline(entry, lastOk + reactIntervalMs));
+        }
+    }
+
+    /**
+     * Forget a url that was deleted or edited. It is OK again if it comes back.
+     */
+    public synchronized void remove(long id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            leave(entry);
+        }
+    }
+
+    /**
+     * Flag or unflag a url for a latency regression.
+     *
+     * @param id url id
+     * @param slow whether the url is now slow
+     */
+    public synchronized void setSlow(long id, boolean slow) {
+        Entry entry = entry(id);
+        leave(entry);
+        entry.slow = slow;
+        enter(entry);
+    }
+
+    protected Entry entry(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entry = new Entry(id);
+            entry.lastGood = clock.wallTime();
+            entries.put(id, entry);
+            counts[STATE_OK] += 1;
+        }
+        return entry;
+    }
+
+    /**
+     * Remove the contribution of an entry to the aggregates.
+     */
+    protected void leave(Entry entry) {
+        counts[entry.state] -= 1;
+        if (entry.flapping) {
+            flappingCount -= 1;
+        }
+        if (entry.slow) {
+            slowCount -= 1;
+        }
+        if (isLoud(entry)) {
+            loudCount -= 1;
+        }
+        if (entry.state == STATE_FAILING || entry.state == STATE_STALE) {
+            int n = failingSince.get(entry.lastGood);
+            if (n == 1) {
+                failingSince.remove(entry.lastGood);
+            } else {
+                failingSince.put(entry.lastGood, n - 1);
+            }
+        }
+    }
+
+    /**
+     * Add the contribution of an entry to the aggregates.
+     */
+    protected void enter(Entry entry) {
+        counts[entry.state] += 1;
+        if (entry.flapping) {
+            flappingCount += 1;
+        }
+        if (entry.slow) {
+            slowCount += 1;
+        }
+        if (isLoud(entry)) {
+            loudCount += 1;
+        }
+        if (entry.state == STATE_FAILING || entry.state == STATE_STALE) {
+            Integer n = failingSince.get(entry.lastGood);
+            failingSince.put(entry.lastGood, n == null ? 1 : n + 1);
+        }
+    }
+
+    /**
+     * Account for the result of a check.
+     *
+     * @param id url id
+     * @param ok whether the check succeeded
+     * @param now wall time of the result
+     */
+    public synchronized void record(long id, boolean ok, long now) {
+        Entry entry = entry(id);
+        boolean wasLoud = isLoud(entry);
+        int oldState = entry.state;
+        leave(entry);
+
+        entry.flapScore = entry.flapScore * FLAP_DECAY + (ok != entry.lastResultOk ? 1 : 0);
+        entry.lastResultOk = ok;
+        if (!entry.flapping && entry.flapScore >= FLAP_START) {
+            entry.flapping = true;
+        } else if (entry.flapping && entry.flapScore < FLAP_STOP) {
+            entry.flapping = false;
+        }
+
+        switch (entry.state) {
+            case STATE_OK:
+                if (!ok) {
+                    entry.state = STATE_SUSPECT;
+                }
+                break;
+            case STATE_SUSPECT:
+                if (ok) {
+                    entry.state = STATE_OK;
+                } else if (++entry.streak >= FAIL_THRESHOLD) {
+                    entry.state = STATE_FAILING;
+                }
+                break;
+            default:
+                if (!ok) {
+                    entry.streak = 0;
+                } else if (++entry.streak >= RECOVER_THRESHOLD) {
+                    entry.state = STATE_OK;
+                }
+                break;
+        }
+        if (entry.state == STATE_OK) {
+            entry.lastGood = now;
+        }
+        if (entry.state == STATE_FAILING && oldState != STATE_FAILING) {
+            if (now - entry.lastGood >= reactIntervalMs) {
+                entry.state = STATE_STALE;
+            } else {
+                deadlines.add(new Deadline(entry, entry.lastGood + reactIntervalMs));
+            }
+        }
+
+        enter(entry);
+        if (!wasLoud && isLoud(entry)) {
+            escalated = true;
+        }
+        if (entry.state != oldState) {
+            /* A SUSPECT url has failed once already */
+            entry.streak = entry.state == STATE_SUSPECT ? 1 : 0;
+            if (persisted(entry.state) != persisted(oldState)) {
+                transitions.add(new Transition(id, persisted(entry.state)));
+            }
+        }
+    }
+
+    /**
+     * SUSPECT only lasts until the next result or two, and is not worth a write; it is
+     * persisted as OK.
+     */
+    protected static int persisted(int state) {
+        return state == STATE_SUSPECT ? STATE_OK : state;
+    }
+
+    protected static boolean isLoud(Entry entry) {
+        return entry.state == STATE_STALE && !entry.flapping;
+    }
+
+    /**
+     * @return state changes since the last call, to persist
+     */
+    public synchronized List<Transition> drainTransitions() {
+        List<Transition> result = new ArrayList<>(transitions);
+        transitions.clear();
+        return result;
+    }
+
+    /**
+     * Promote the urls whose time is up to STALE, persist the changes, and classify.
+     *
+     * @param store where to persist
+     * @return current alert
+     */
+    public Alert evaluate(MonitorStore store) {
+        Alert alert;
+        List<Transition> changes;
+        synchronized (this) {
+            long now = clock.wallTime();
+            while (!deadlines.isEmpty() && deadlines.peek().time <= now) {
+                Deadline deadline = deadlines.remove();
+                Entry entry = deadline.entry;
+                if (entries.get(entry.id) != entry || entry.state != STATE_FAILING || entry.lastGood + reactIntervalMs != deadline.time) {
+                    continue;
+                }
+                leave(entry);
+                entry.state = STATE_STALE;
+                entry.streak = 0;
+                enter(entry);
+                escalated |= isLoud(entry);
+                transitions.add(new Transition(entry.id, entry.state));
+            }
+
+            int failureCount = counts[STATE_FAILING] + counts[STATE_STALE];
+            Level level = loudCount != 0 ? Level.STRONG : failureCount != 0 ? Level.WEAK : Level.NONE;
+            long oldestFailure = failingSince.isEmpty() ? 0 : failingSince.firstKey();
+            alert = new Alert(level, failureCount, counts[STATE_STALE], oldestFailure, counts[STATE_SUSPECT],
+                    flappingCount, slowCount, escalated);
+            escalated = false;
+            changes = drainTransitions();
+        }
+
+        if (!changes.isEmpty()) {
+            store.saveAlertStates(changes);
+        }
+        return alert;
+    }
+}
@@ -0,0 +1,124 @@
+package fi.bel.httpservicemonitor;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content rule for a response body. The rule is written one pattern per line; the body must
+ * contain every plain pattern, and must not contain any pattern prefixed with '!'. Only the
+ * first maxBytes of the body are looked at.
+ *
+ * As soon as the outcome is certain, the probe stops reading. Without '!' patterns this is when
+ * the last required pattern is seen; a forbidden pattern fails the probe when it is seen.
+ */
+public class BodyRule {
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    protected final PatternMatcher matcher;
+    protected final List<String> patterns;
+    protected final long required;
+    protected final long forbidden;
+    protected final int maxBytes;
+
+    protected BodyRule(PatternMatcher matcher, List<String> patterns, long required, long forbidden, int maxBytes) {
+        this.matcher = matcher;
+        this.patterns = patterns;
+        this.required = required;
+        this.forbidden = forbidden;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param text one pattern per line, '!' prefix for forbidden patterns
+     * @param maxBytes how much of the body to scan at most
+     * @return rule, or null if text has no patterns
+     * @throws IllegalArgumentException if there are too many patterns
+     */
+    public static BodyRule parse(String text, int maxBytes) {
+        if (text == null) {
+            return null;
+        }
+
+        List<String> patterns = new ArrayList<>();
+        List<byte[]> bytes = new ArrayList<>();
+        long required = 0;
+        long forbidden = 0;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            boolean negated = line.startsWith("!");
+            if (negated) {
+                line = line.substring(1).trim();
+            }
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (negated) {
+                forbidden |= 1L << patterns.size();
+            } else {
+                required |= 1L << patterns.size();
+            }
+            patterns.add(line);
+            bytes.add(line.getBytes(UTF_8));
+            if (patterns.size() > PatternMatcher.MAX_PATTERNS) {
+                throw new IllegalArgumentException("At most " + PatternMatcher.MAX_PATTERNS + " patterns are supported");
+            }
+        }
+
+        if (patterns.isEmpty()) {
+            return null;
+        }
+        return new BodyRule(new PatternMatcher(bytes), patterns, required, forbidden, maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES);
+    }
+
+    public PatternMatcher.State newState() {
+        return matcher.newState();
+    }
+
+    public void feed(PatternMatcher.State state, byte[] data, int offset, int length) {
+        matcher.feed(state, data, offset, length);
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Decide the outcome with what has been seen so far.
+     *
+     * @param state stream state
+     * @param complete whether the body has ended, or maxBytes has been scanned
+     * @return null if undecided, otherwise an empty string for pass or the reason of failure
+     */
+    public String decide(PatternMatcher.State state, boolean complete) {
+        long found = state.getFound();
+        if ((found & forbidden) != 0) {
+            return "Body contains forbidden pattern: " + patterns.get(Long.numberOfTrailingZeros(found & forbidden));
+        }
+        if ((found & required) == required && forbidden == 0) {
+            return "";
+        }
+        if (!complete) {
+            return null;
+        }
+        long missing = required & ~found;
+        if (missing != 0) {
+            return "Body does not contain pattern: " + patterns.get(Long.numberOfTrailingZeros(missing));
+        }
+        return "";
+    }
+
+    /**
+     * @return the rule in its parsed form, one pattern per line, then the scan limit
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < patterns.size(); i++) {
+            sb.append((forbidden & 1L << i) != 0 ? "!" : "").append(patterns.get(i)).append('\n');
+        }
+        return sb.append(maxBytes).append(" bytes").toString();
+    }
+}
@@ -0,0 +1,24 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.IOException;
+
+/**
+ * Probe result for a server whose certificate chain is valid, but expires soon.
+ */
+public class CertificateExpiryException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    protected final long expiry;
+
+    public CertificateExpiryException(long expiry, String message) {
+        super(message);
+        this.expiry = expiry;
+    }
+
+    /**
+     * @return earliest expiry time in the certificate chain
+     */
+    public long getExpiry() {
+        return expiry;
+    }
+}
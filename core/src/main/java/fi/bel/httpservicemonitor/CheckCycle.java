@@ -0,0 +1,367 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * One round of checks over a set of endpoints. The probes run on the ProbeEngine, through
+ * a ProbeDispatcher that limits how many are in flight, and retries wait on the engine's
+ * timer, so no thread is held per endpoint. The thread that calls await() records the
+ * results in the order they complete, in batches, so that a large cycle does not take one
+ * store transaction per endpoint.
+ *
+ * Endpoints that would be probed the same way, such as rows with the same address, share
+ * one probe, and its result is recorded for each of them. More endpoints can be added while
+ * the cycle runs, so that a cycle that overlaps a running one can be merged into it; an
+ * endpoint already in the cycle is not added again, so it never has two probes in flight.
+ *
+ * An endpoint whose probe type is a connect or handshake probe is checked with that, and
+ * only if it fails is a full HTTP request made, at once, with the usual retries. A handshake
+ * probe also fails if the server's certificate expires within CERTIFICATE_WARNING_MS.
+ *
+ * An endpoint that sends heartbeats is not probed at all. It is only put to a cycle once its
+ * heartbeats are overdue, and it fails at once.
+ *
+ * A cycle can be aborted, such as when the network goes away: its probes in flight are
+ * cancelled, no more retries are made, and await() returns with the results so far. The
+ * endpoints that got no result can be had from getUnchecked().
+ */
+public class CheckCycle {
+    protected static final Logger LOG = Logger.getLogger(CheckCycle.class.getSimpleName());
+    protected static final int BATCH_SIZE = 100;
+    protected static final long BATCH_LINGER_MS = 1000;
+    protected static final long CERTIFICATE_WARNING_MS = 1000L * 60 * 60 * 24 * 14;
+    protected static final Metrics.Counter CYCLES = Metrics.getInstance().counter("cycle.count");
+    protected static final Metrics.Histogram CYCLE_DURATION = Metrics.getInstance().histogram("cycle.durationMs");
+    protected static final Metrics.Counter RETRIES = Metrics.getInstance().counter("probe.retries");
+    protected static final Metrics.Gauge QUEUE_DEPTH = Metrics.getInstance().gauge("cycle.queueDepth");
+    protected static final Metrics.Gauge THREADS = Metrics.getInstance().gauge("threads.active");
+    protected static final Metrics.Counter ABORTED = Metrics.getInstance().counter("cycle.aborted");
+    protected static final Metrics.Counter COALESCED = Metrics.getInstance().counter("cycle.coalesced");
+    protected static final Metrics.Counter DUPLICATES = Metrics.getInstance().counter("cycle.duplicates");
+    protected static final Metrics.Counter ESCALATED = Metrics.getInstance().counter("probe.escalated");
+
+    /** Put to the completion queue to make await() return early */
+    protected static final CheckResult ABORT = new CheckResult(null, 0, null, null, 0);
+
+    /**
+     * Probe shared by one or more endpoints that eventually resolves to a status code,
+     * Reachable or Exception. The result is put to the completion queue once for each endpoint.
+     */
+    protected class Task implements ProbeEngine.Callback {
+        protected final String key;
+        protected final Endpoint endpoint;
+        /** Every endpoint that gets the result, the first one included; guarded by the cycle */
+        protected final List<Endpoint> sharers = new ArrayList<>(1);
+        /** Kind of the current probe */
+        protected int kind;
+        protected long startTime;
+        protected int attempt;
+        protected volatile ProbeEngine.Timer retry;
+
+        protected Task(String key, Endpoint endpoint) {
+            this.key = key;
+            this.endpoint = endpoint;
+            this.kind = endpoint.probeType;
+            sharers.add(endpoint);
+        }
+
+        protected void start() {
+            if (aborted) {
+                return;
+            }
+            if (attempt == 0) {
+                startTime = clock.elapsedTime();
+            }
+            attempt += 1;
+            if (kind == ProbeEngine.PROBE_PUSH) {
+                complete(new IOException("No heartbeat from " + endpoint.address), new ProbeEngine.Timing());
+                return;
+            }
+            LOG.fine("Poll " + endpoint.address + " attempt " + attempt);
+            dispatcher.submit(endpoint.address, kind, timeoutMs, endpoint.headOnly, endpoint.bodyRule, this);
+        }
+
+        @Override
+        public void onResult(Object result, ProbeEngine.Timing timing) {
+            if (aborted) {
+                return;
+            }
+            LOG.fine("Poll " + endpoint.address + " result: " + result + ", " + timing);
+            if (kind != ProbeEngine.PROBE_HTTP) {
+                if (result instanceof ProbeEngine.Reachable) {
+                    complete(checkCertificate((ProbeEngine.Reachable) result), timing);
+                    return;
+                }
+                /* The service may yet answer requests; let a full check decide, right away */
+                LOG.fine("Escalating " + endpoint.address + " to a request after " + result);
+                ESCALATED.increment();
+                kind = ProbeEngine.PROBE_HTTP;
+                attempt = 0;
+                start();
+                return;
+            }
+
+            long delay = CheckResult.isOk(result) ? -1
+                    : retryPolicy.nextDelay(attempt, clock.elapsedTime() - startTime);
+            if (delay == -1) {
+                complete(result, timing);
+                return;
+            }
+
+            LOG.fine("Retrying " + endpoint.address + " in " + delay + " ms");
+            RETRIES.increment();
+            retry = dispatcher.getEngine().schedule(delay, new Runnable() {
+                @Override
+                public void run() {
+                    /* abort() may have missed this timer, if it ran while the timer was being set */
+                    if (!aborted) {
+                        start();
+                    }
+                }
+            });
+        }
+
+        protected Object checkCertificate(ProbeEngine.Reachable result) {
+            long expiry = result.certificateExpiry;
+            if (expiry != 0 && expiry - clock.wallTime() < CERTIFICATE_WARNING_MS) {
+                return new CertificateExpiryException(expiry, "Certificate of " + endpoint.address + " expires " + new Date(expiry));
+            }
+            return result;
+        }
+
+        protected void complete(Object result, ProbeEngine.Timing timing) {
+            synchronized (CheckCycle.this) {
+                open.remove(key);
+                for (Endpoint sharer : sharers) {
+                    completed.add(new CheckResult(sharer, kind, result, timing, attempt));
+                }
+            }
+        }
+    }
+
+    protected final ProbeDispatcher dispatcher;
+    /** Every endpoint in the cycle; guarded by the cycle */
+    protected final List<Endpoint> endpoints = new ArrayList<>();
+    protected final RetryPolicy retryPolicy;
+    protected final int timeoutMs;
+    protected final Clock clock;
+    protected final MonitorStore store;
+    protected final BlockingQueue<CheckResult> completed = new LinkedBlockingQueue<>();
+    /* Guarded by the cycle */
+    protected final List<Task> tasks = new ArrayList<>();
+    protected final Set<Long> ids = new HashSet<>();
+    /** Tasks that have not resolved yet, by probe key */
+    protected final Map<String, Task> open = new HashMap<>();
+    protected int remaining;
+    protected boolean started;
+    protected boolean closed;
+
+    protected final Set<Endpoint> recorded = new HashSet<>();
+    protected long startTime;
+    protected volatile boolean aborted;
+
+    /**
+     * @param dispatcher dispatcher to probe through
+     * @param endpoints what to check
+     * @param retryPolicy retry policy of failed probes
+     * @param timeoutMs connect and response timeout of each attempt
+     * @param clock time source
+     * @param store receiver of the results
+     */
+    public CheckCycle(ProbeDispatcher dispatcher, List<Endpoint> endpoints, RetryPolicy retryPolicy, int timeoutMs, Clock clock, MonitorStore store) {
+        this.dispatcher = dispatcher;
+        this.retryPolicy = retryPolicy;
+        this.timeoutMs = timeoutMs;
+        this.clock = clock;
+        this.store = store;
+        add(endpoints);
+    }
+
+    /**
+     * Submit all probes. Returns immediately.
+     */
+    public void start() {
+        List<Task> start;
+        synchronized (this) {
+            startTime = clock.elapsedTime();
+            started = true;
+            start = new ArrayList<>(tasks);
+        }
+        CYCLES.increment();
+        for (Task task : start) {
+            task.start();
+        }
+    }
+
+    /**
+     * Add endpoints to the cycle. Endpoints already in the cycle are skipped, and endpoints
+     * probed the same way as one with a probe still open share its probe. If the cycle has
+     * started, the new probes start at once. May be called from any thread.
+     *
+     * @param more endpoints to check
+     * @return false if the cycle was aborted or await() has already returned, so that
+     *         nothing was added
+     */
+    public boolean add(List<Endpoint> more) {
+        List<Task> start = new ArrayList<>();
+        synchronized (this) {
+            if (closed || aborted) {
+                return false;
+            }
+            for (Endpoint endpoint : more) {
+                if (!ids.add(endpoint.id)) {
+                    DUPLICATES.increment();
+                    continue;
+                }
+                endpoints.add(endpoint);
+                remaining += 1;
+
+                String key = endpoint.probeKey();
+                Task task = open.get(key);
+                if (task != null) {
+                    LOG.fine("Sharing the probe of " + endpoint.address + " with " + task.endpoint.id);
+                    COALESCED.increment();
+                    task.sharers.add(endpoint);
+                    continue;
+                }
+                task = new Task(key, endpoint);
+                open.put(key, task);
+                tasks.add(task);
+                if (started) {
+                    start.add(task);
+                }
+            }
+        }
+        for (Task task : start) {
+            task.start();
+        }
+        return true;
+    }
+
+    /**
+     * Stop the cycle: cancel its probes in flight and its pending retries, and make await()
+     * return. Results that arrive after this are dropped. May be called from any thread.
+     *
+     * @param reason why, for the log
+     */
+    public void abort(String reason) {
+        if (aborted) {
+            return;
+        }
+        LOG.info("Aborting cycle: " + reason);
+        ABORTED.increment();
+        aborted = true;
+        Set<Task> cancelled;
+        synchronized (this) {
+            for (Task task : tasks) {
+                ProbeEngine.Timer retry = task.retry;
+                if (retry != null) {
+                    retry.cancel();
+                }
+            }
+            cancelled = new HashSet<>(tasks);
+        }
+        dispatcher.cancel(cancelled, new IOException("Cycle aborted: " + reason));
+        completed.add(ABORT);
+    }
+
+    /**
+     * @return whether the cycle was aborted
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Record results until every endpoint has one, including those added meanwhile. Once
+     * this returns, nothing more can be added.
+     *
+     * @throws InterruptedException if interrupted; the outstanding results are not recorded
+     */
+    public void await() throws InterruptedException {
+        List<CheckResult> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            await(batch);
+        } finally {
+            synchronized (this) {
+                closed = true;
+            }
+        }
+        CYCLE_DURATION.record(clock.elapsedTime() - startTime);
+    }
+
+    protected void await(List<CheckResult> batch) throws InterruptedException {
+        while (!aborted) {
+            int expected;
+            synchronized (this) {
+                if (remaining == 0) {
+                    /* Closed under the same lock, so that add() cannot slip in after the check */
+                    closed = true;
+                    return;
+                }
+                expected = remaining;
+            }
+
+            /* Wait for the first result, then linger a while to collect more into the same batch */
+            CheckResult first = completed.take();
+            if (first == ABORT) {
+                return;
+            }
+            batch.add(first);
+            long lingerEnd = clock.elapsedTime() + BATCH_LINGER_MS;
+            while (batch.size() < Math.min(expected, BATCH_SIZE)) {
+                CheckResult result = completed.poll(lingerEnd - clock.elapsedTime(), TimeUnit.MILLISECONDS);
+                if (result == null || result == ABORT) {
+                    break;
+                }
+                batch.add(result);
+            }
+
+            /* Results that arrived while this batch was collected */
+            QUEUE_DEPTH.set(completed.size());
+            THREADS.set(Thread.activeCount());
+            LOG.fine("Recording " + batch.size() + " results");
+            store.record(batch, clock.wallTime());
+            for (CheckResult result : batch) {
+                recorded.add(result.endpoint);
+            }
+            synchronized (this) {
+                remaining -= batch.size();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Call after await() has returned.
+     *
+     * @return endpoints whose result was not recorded, because the cycle was aborted
+     */
+    public synchronized List<Endpoint> getUnchecked() {
+        List<Endpoint> unchecked = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (!recorded.contains(endpoint)) {
+                unchecked.add(endpoint);
+            }
+        }
+        return unchecked;
+    }
+
+    /**
+     * @return number of endpoints in the cycle
+     */
+    public synchronized int size() {
+        return endpoints.size();
+    }
+}
@@ -0,0 +1,53 @@
+package fi.bel.httpservicemonitor;
+
+/**
+ * Final outcome of checking one endpoint, after any retries.
+ */
+public class CheckResult {
+    public final Endpoint endpoint;
+    /** Kind of the probe that gave the result; PROBE_HTTP if a cheaper probe was escalated */
+    public final int probeType;
+    /** Integer status code, Reachable or IOException, as given by ProbeEngine */
+    public final Object result;
+    public final ProbeEngine.Timing timing;
+    /** Attempts of the probe that gave the result */
+    public final int attempts;
+
+    public CheckResult(Endpoint endpoint, int probeType, Object result, ProbeEngine.Timing timing, int attempts) {
+        this.endpoint = endpoint;
+        this.probeType = probeType;
+        this.result = result;
+        this.timing = timing;
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return whether the endpoint counts as up
+     */
+    public boolean isOk() {
+        return isOk(result);
+    }
+
+    /**
+     * @param result probe result
+     * @return whether the result means the service is up
+     */
+    public static boolean isOk(Object result) {
+        return result.equals(200) || result instanceof ProbeEngine.Reachable;
+    }
+
+    /**
+     * A body that failed its rule still had a status code, and a normal response time.
+     *
+     * @return HTTP status code, or 0 if there was no HTTP response
+     */
+    public int getCode() {
+        if (result instanceof Integer) {
+            return (Integer) result;
+        }
+        if (result instanceof ContentMismatchException) {
+            return ((ContentMismatchException) result).getCode();
+        }
+        return 0;
+    }
+}
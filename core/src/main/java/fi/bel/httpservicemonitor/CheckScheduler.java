@@ -0,0 +1,74 @@
+package fi.bel.httpservicemonitor;
+
+/**
+ * Timing wheel spanning one check interval, used to pick the phase of a url's checks so that
+ * checks are spread evenly instead of all happening at once. Existing checks are projected onto
+ * the wheel, and a new check goes to the middle of the least loaded slot.
+ *
+ * Once placed, a url keeps its phase: every later check is a whole number of intervals after
+ * the first.
+ */
+public class CheckScheduler {
+    protected static final int SLOTS = 60;
+
+    protected final long now;
+    protected final long intervalMs;
+    protected final int[] load = new int[SLOTS];
+
+    /**
+     * @param now current wall clock time; the wheel covers now to now + intervalMs
+     * @param intervalMs check interval of the url being placed
+     */
+    public CheckScheduler(long now, long intervalMs) {
+        this.now = now;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Account for an already scheduled url.
+     *
+     * @param nextCheck its next check time
+     * @param checkIntervalMs its check interval
+     */
+    public void add(long nextCheck, long checkIntervalMs) {
+        if (checkIntervalMs <= 0) {
+            return;
+        }
+        long time = nextCheck(nextCheck, now, checkIntervalMs);
+        /* A url with a shorter interval than ours occupies several slots of the wheel. */
+        for (; time < now + intervalMs; time += checkIntervalMs) {
+            load[(int) ((time - now) * SLOTS / intervalMs)] += 1;
+        }
+    }
+
+    /**
+     * Choose the first check time for a url and account for it.
+     *
+     * @return time of the first check, within one interval from now
+     */
+    public long place() {
+        int best = 0;
+        for (int i = 1; i < SLOTS; i++) {
+            if (load[i] < load[best]) {
+                best = i;
+            }
+        }
+        load[best] += 1;
+        return now + (best * 2 + 1) * intervalMs / (SLOTS * 2);
+    }
+
+    /**
+     * Advance a check time past the present, keeping its phase.
+     *
+     * @param scheduled time the check was scheduled for
+     * @param now current time
+     * @param intervalMs check interval
+     * @return first time after now that is a whole number of intervals after scheduled
+     */
+    public static long nextCheck(long scheduled, long now, long intervalMs) {
+        if (scheduled > now) {
+            return scheduled;
+        }
+        return scheduled + ((now - scheduled) / intervalMs + 1) * intervalMs;
+    }
+}
@@ -0,0 +1,32 @@
+package fi.bel.httpservicemonitor;
+
+/**
+ * Source of time for the monitoring core. Wall time is what gets stored and compared with
+ * stored times; elapsed time only measures durations, and must not jump.
+ */
+public interface Clock {
+    /**
+     * Clock of a plain JVM.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long wallTime() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedTime() {
+            return System.nanoTime() / 1000000;
+        }
+    };
+
+    /**
+     * @return milliseconds since the epoch
+     */
+    long wallTime();
+
+    /**
+     * @return monotonic milliseconds from an arbitrary origin
+     */
+    long elapsedTime();
+}
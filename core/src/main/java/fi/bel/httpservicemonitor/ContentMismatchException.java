@@ -0,0 +1,24 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.IOException;
+
+/**
+ * Probe result for a response whose status was fine, but whose body did not satisfy the BodyRule.
+ */
+public class ContentMismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    protected final int code;
+
+    public ContentMismatchException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    /**
+     * @return HTTP status code of the response
+     */
+    public int getCode() {
+        return code;
+    }
+}
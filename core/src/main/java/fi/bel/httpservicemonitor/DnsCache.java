@@ -0,0 +1,80 @@
+package fi.bel.httpservicemonitor;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Host name lookup results, kept for a while so that probes of urls on the same host, and
+ * retries of the same url, do not all go to the resolver. Failed lookups are remembered too,
+ * for a shorter time, so that a missing host does not get looked up once per url.
+ *
+ * The platform does not tell us the TTL of the DNS record, so fixed TTLs are used. Callers
+ * should invalidate an entry when connecting to the address fails, in case it moved.
+ *
+ * Not thread safe; ProbeEngine only uses it from the selector thread.
+ */
+public class DnsCache {
+    protected static final long POSITIVE_TTL_MS = 1000 * 60 * 5;
+    protected static final long NEGATIVE_TTL_MS = 1000 * 30;
+    protected static final int MAX_ENTRIES = 1024;
+
+    /**
+     * Outcome of a lookup; exactly one of address and failure is set.
+     */
+    public static class Entry {
+        public final InetAddress address;
+        public final UnknownHostException failure;
+        protected final long expires;
+
+        protected Entry(InetAddress address, UnknownHostException failure, long expires) {
+            this.address = address;
+            this.failure = failure;
+            this.expires = expires;
+        }
+    }
+
+    protected final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @param host host name
+     * @param now current time of ProbeEngine.now()
+     * @return unexpired entry, or null if the host needs to be looked up
+     */
+    public Entry get(String host, long now) {
+        Entry entry = entries.get(host);
+        if (entry != null && entry.expires <= now) {
+            entries.remove(host);
+            return null;
+        }
+        return entry;
+    }
+
+    public void putAddress(String host, InetAddress address, long now) {
+        put(host, new Entry(address, null, now + POSITIVE_TTL_MS), now);
+    }
+
+    public void putFailure(String host, UnknownHostException failure, long now) {
+        put(host, new Entry(null, failure, now + NEGATIVE_TTL_MS), now);
+    }
+
+    protected void put(String host, Entry entry, long now) {
+        if (entries.size() >= MAX_ENTRIES) {
+            for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+                if (i.next().expires <= now) {
+                    i.remove();
+                }
+            }
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.clear();
+            }
+        }
+        entries.put(host, entry);
+    }
+
+    public void invalidate(String host) {
+        entries.remove(host);
+    }
+}
@@ -0,0 +1,75 @@
+package fi.bel.httpservicemonitor;
+
+import java.util.logging.Logger;
+
+/**
+ * What to probe for one url row: the address, and how to judge the response.
+ *
+ * The probe type is what this check of the url starts with. A connect or handshake probe
+ * only tells whether the service is there; if it fails, the check goes on with a full HTTP
+ * request, which is judged by the usual rules.
+ */
+public class Endpoint {
+    protected static final Logger LOG = Logger.getLogger(Endpoint.class.getSimpleName());
+
+    public final long id;
+    public final String address;
+    /** ProbeEngine.PROBE_HTTP, PROBE_TCP, PROBE_TLS or PROBE_PUSH */
+    public final int probeType;
+    public final boolean headOnly;
+    public final BodyRule bodyRule;
+
+    public Endpoint(long id, String address, boolean headOnly, BodyRule bodyRule) {
+        this(id, address, ProbeEngine.PROBE_HTTP, headOnly, bodyRule);
+    }
+
+    public Endpoint(long id, String address, int probeType, boolean headOnly, BodyRule bodyRule) {
+        this.id = id;
+        this.address = address;
+        this.probeType = probeType;
+        this.headOnly = headOnly;
+        this.bodyRule = bodyRule;
+    }
+
+    /**
+     * Endpoints with the same key are probed exactly the same way, and can share a probe.
+     * The request part is in the key of a connect or handshake probe too, since that is
+     * what the probe turns into when it fails. An endpoint that sends heartbeats shares
+     * nothing, since it is only checked once its own heartbeats have stopped.
+     *
+     * @return key of the probe
+     */
+    public String probeKey() {
+        String request = (headOnly ? "HEAD " : "GET ") + address + (bodyRule != null ? "\n" + bodyRule : "");
+        switch (probeType) {
+            case ProbeEngine.PROBE_TCP:
+                return "TCP " + request;
+            case ProbeEngine.PROBE_TLS:
+                return "TLS " + request;
+            case ProbeEngine.PROBE_PUSH:
+                return "PUSH " + id;
+            default:
+                return request;
+        }
+    }
+
+    /**
+     * Build from the url table columns. A rule that no longer parses is dropped, so that
+     * the url is still checked for its status code.
+     *
+     * @param probeType kind of probe to start with
+     * @param bodyPatterns url.bodyPatterns, may be null
+     * @param bodyMaxBytes url.bodyMaxBytes
+     */
+    public static Endpoint fromColumns(long id, String address, int probeType, boolean headOnly, String bodyPatterns, int bodyMaxBytes) {
+        BodyRule bodyRule = null;
+        if (!headOnly) {
+            try {
+                bodyRule = BodyRule.parse(bodyPatterns, bodyMaxBytes);
+            } catch (IllegalArgumentException iae) {
+                LOG.warning("Ignoring body rule of " + address + ": " + iae.getMessage());
+            }
+        }
+        return new Endpoint(id, address, probeType, headOnly, bodyRule);
+    }
+}
@@ -0,0 +1,629 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Small HTTP server that services report in to, for urls that are not polled but send
+ * heartbeats instead. A heartbeat is a GET or POST of /heartbeat/TOKEN, where the token
+ * identifies the url. It is answered 204, or 404 if the token is not known. A request body
+ * is read and thrown away. HTTP/1.1 connections are kept open, so a service can send its
+ * heartbeats over one connection.
+ *
+ * One selector thread serves every connection. Serving a heartbeat allocates nothing beyond
+ * what the selector and accepting a connection cost: the token is looked up straight from
+ * the request bytes in an open addressing table, the time is written into the url's entry,
+ * and connections and their buffers are reused. The times
+ * are collected from the entries by drain(), as often as the caller wants to write them down.
+ */
+public class HeartbeatListener implements Runnable {
+    protected static final Logger LOG = Logger.getLogger(HeartbeatListener.class.getSimpleName());
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+    protected static final String PATH = "/heartbeat/";
+    protected static final int MAX_HEADER_BYTES = 2048;
+    protected static final long MAX_BODY_BYTES = 65536;
+    protected static final int MAX_CONNECTIONS = 1024;
+    protected static final long IDLE_TIMEOUT_MS = 30000;
+    protected static final long SWEEP_INTERVAL_MS = 1000;
+    protected static final int POOL_SIZE = 64;
+    protected static final int BACKLOG = 256;
+
+    protected static final Metrics.Counter RECEIVED = Metrics.getInstance().counter("heartbeat.received");
+    protected static final Metrics.Counter REJECTED = Metrics.getInstance().counter("heartbeat.rejected");
+    protected static final Metrics.Gauge CONNECTIONS = Metrics.getInstance().gauge("heartbeat.connections");
+
+    /* Responses, by index */
+    protected static final int RESPONSE_OK = 0;
+    protected static final int RESPONSE_BAD_REQUEST = 1;
+    protected static final int RESPONSE_NOT_FOUND = 2;
+    protected static final int RESPONSE_BAD_METHOD = 3;
+    protected static final int RESPONSE_TOO_LARGE = 4;
+    protected static final String[] STATUS_LINES = {
+            "204 No Content", "400 Bad Request", "404 Not Found", "405 Method Not Allowed", "413 Payload Too Large"
+    };
+    protected static final byte[][] KEEP_ALIVE = new byte[STATUS_LINES.length][];
+    protected static final byte[][] CLOSE = new byte[STATUS_LINES.length][];
+
+    static {
+        for (int i = 0; i < STATUS_LINES.length; i++) {
+            String head = "HTTP/1.1 " + STATUS_LINES[i] + "\r\n" + (i != RESPONSE_OK ? "Content-Length: 0\r\n" : "");
+            KEEP_ALIVE[i] = (head + "\r\n").getBytes(ASCII);
+            CLOSE[i] = (head + "Connection: close\r\n\r\n").getBytes(ASCII);
+        }
+    }
+
+    /**
+     * A url that reports in.
+     */
+    protected static class Entry {
+        protected final long id;
+        protected final byte[] token;
+        protected final int hash;
+        /** Wall time of the latest heartbeat, or 0; written by the selector thread */
+        protected volatile long lastSeen;
+        /** lastSeen as of the previous drain(); guarded by the listener */
+        protected long drained;
+
+        protected Entry(long id, byte[] token) {
+            this.id = id;
+            this.token = token;
+            this.hash = hash(token, 0, token.length);
+        }
+    }
+
+    /**
+     * The urls, immutable once built, so that the selector thread can read it without locking.
+     */
+    protected static class Table {
+        protected final Entry[] slots;
+        protected final Map<Long, Entry> byId;
+
+        protected Table(Map<Long, Entry> byId) {
+            this.byId = byId;
+            int size = 16;
+            while (size < byId.size() * 2) {
+                size *= 2;
+            }
+            slots = new Entry[size];
+            for (Entry entry : byId.values()) {
+                int i = entry.hash & (size - 1);
+                while (slots[i] != null) {
+                    i = (i + 1) & (size - 1);
+                }
+                slots[i] = entry;
+            }
+        }
+
+        protected Entry find(byte[] data, int offset, int length) {
+            int mask = slots.length - 1;
+            int hash = hash(data, offset, length);
+            for (int i = hash & mask; slots[i] != null; i = (i + 1) & mask) {
+                Entry entry = slots[i];
+                if (entry.hash == hash && matches(entry.token, data, offset, length)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    protected static class Connection {
+        protected final ByteBuffer in = ByteBuffer.allocate(MAX_HEADER_BYTES);
+        protected final ByteBuffer out = ByteBuffer.allocate(128);
+        protected SocketChannel channel;
+        protected SelectionKey key;
+        /** Position in the list of open connections */
+        protected int index;
+        protected long lastActive;
+        /** Where the search for the end of the header goes on from */
+        protected int scanned;
+        /** Body bytes of the current request still to be thrown away */
+        protected long bodyRemaining;
+        protected boolean closeAfterWrite;
+
+        protected Connection() {
+            out.limit(0);
+        }
+    }
+
+    protected final Clock clock;
+    protected final Selector selector;
+    protected final ServerSocketChannel server;
+    protected final Thread thread;
+    protected final List<Connection> open = new ArrayList<>();
+    protected final Queue<Connection> pool = new ArrayDeque<>();
+    protected volatile Table table = new Table(new HashMap<Long, Entry>());
+    protected volatile boolean running = true;
+    protected long lastSweep;
+
+    /* Statistics, written by the selector thread only */
+    protected volatile long accepted;
+    protected volatile long requests;
+
+    /**
+     * Bind the listener. It does not serve anything until started.
+     *
+     * @param clock time source of the heartbeat times
+     * @param address address and port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public HeartbeatListener(Clock clock, InetSocketAddress address) throws IOException {
+        this.clock = clock;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(address, BACKLOG);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this, HeartbeatListener.class.getSimpleName());
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop serving and close every connection. Heartbeats received so far can still be drained.
+     */
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        server.close();
+        selector.close();
+    }
+
+    /**
+     * @return port the listener is bound to
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Replace the urls that may report in. A url that stays keeps its heartbeat time, even
+     * if its token changes.
+     *
+     * @param tokens token of each url, by id
+     */
+    public synchronized void setTokens(Map<Long, String> tokens) {
+        Map<Long, Entry> old = table.byId;
+        Map<Long, Entry> byId = new HashMap<>();
+        for (Map.Entry<Long, String> token : tokens.entrySet()) {
+            Entry entry = new Entry(token.getKey(), token.getValue().getBytes(ASCII));
+            Entry previous = old.get(entry.id);
+            if (previous != null) {
+                entry.lastSeen = previous.lastSeen;
+                entry.drained = previous.drained;
+            }
+            byId.put(entry.id, entry);
+        }
+        table = new Table(byId);
+    }
+
+    /**
+     * @param id url id
+     * @return wall time of the latest heartbeat of the url, or 0 if none has been received
+     */
+    public long lastSeen(long id) {
+        Entry entry = table.byId.get(id);
+        return entry != null ? entry.lastSeen : 0;
+    }
+
+    /**
+     * @return time of the latest heartbeat of each url that has sent one since the previous call, by id
+     */
+    public synchronized Map<Long, Long> drain() {
+        Map<Long, Long> seen = new HashMap<>();
+        for (Entry entry : table.byId.values()) {
+            long lastSeen = entry.lastSeen;
+            if (lastSeen != entry.drained) {
+                seen.put(entry.id, lastSeen);
+                entry.drained = lastSeen;
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * FNV-1a.
+     */
+    protected static int hash(byte[] data, int offset, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (data[i] & 0xff)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    protected static boolean matches(byte[] expected, byte[] data, int offset, int length) {
+        if (expected.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (expected[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SWEEP_INTERVAL_MS);
+                long now = now();
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(now);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        connection.lastActive = now;
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            serve(connection);
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+                if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+                    lastSweep = now;
+                    sweep(now);
+                }
+            } catch (RuntimeException | IOException e) {
+                /* Keep serving the other connections */
+                LOG.log(Level.SEVERE, "Selector loop failure", e);
+            }
+        }
+
+        while (!open.isEmpty()) {
+            close(open.get(open.size() - 1));
+        }
+    }
+
+    protected void accept(long now) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            accepted += 1;
+            if (open.size() >= MAX_CONNECTIONS) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            Connection connection = pool.poll();
+            if (connection == null) {
+                connection = new Connection();
+            }
+            connection.channel = channel;
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connection.lastActive = now;
+            connection.index = open.size();
+            open.add(connection);
+            CONNECTIONS.set(open.size());
+        }
+    }
+
+    protected void read(Connection connection) throws IOException {
+        if (connection.out.hasRemaining()) {
+            /* Not reading the next request before the previous answer is out */
+            return;
+        }
+        if (connection.channel.read(connection.in) == -1) {
+            close(connection);
+            return;
+        }
+        serve(connection);
+    }
+
+    /**
+     * Answer as many requests as the buffer holds, as far as the socket takes the answers.
+     */
+    protected void serve(Connection connection) throws IOException {
+        while (true) {
+            if (connection.out.hasRemaining()) {
+                connection.channel.write(connection.out);
+                if (connection.out.hasRemaining()) {
+                    connection.key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (connection.closeAfterWrite) {
+                    close(connection);
+                    return;
+                }
+            }
+            discardBody(connection);
+            if (connection.bodyRemaining != 0 || !parse(connection)) {
+                connection.key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+        }
+    }
+
+    protected static void discardBody(Connection connection) {
+        int held = connection.in.position();
+        int n = (int) Math.min(connection.bodyRemaining, held);
+        if (n != 0) {
+            consume(connection, n);
+            connection.bodyRemaining -= n;
+        }
+    }
+
+    /**
+     * Drop bytes from the front of the input buffer.
+     */
+    protected static void consume(Connection connection, int n) {
+        byte[] data = connection.in.array();
+        int held = connection.in.position();
+        System.arraycopy(data, n, data, 0, held - n);
+        connection.in.position(held - n);
+        connection.scanned = 0;
+    }
+
+    /**
+     * Parse one request from the input buffer, record the heartbeat, and put the answer to
+     * the output buffer.
+     *
+     * @return false if the buffer does not hold a whole request header yet
+     */
+    protected boolean parse(Connection connection) {
+        byte[] data = connection.in.array();
+        int held = connection.in.position();
+        int end = -1;
+        for (int i = Math.max(0, connection.scanned - 3); i + 3 < held; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            connection.scanned = held;
+            if (held == data.length) {
+                respond(connection, RESPONSE_BAD_REQUEST, true);
+                return true;
+            }
+            return false;
+        }
+        requests += 1;
+
+        int lineEnd = indexOf(data, 0, end, '\r');
+        if (lineEnd == -1) {
+            lineEnd = end;
+        }
+        boolean keepAlive = endsWith(data, lineEnd, "HTTP/1.1");
+        long contentLength = 0;
+        boolean chunked = false;
+        for (int start = lineEnd + 2; start < end; ) {
+            int stop = indexOf(data, start, end, '\r');
+            if (stop == -1) {
+                stop = end;
+            }
+            if (startsWithIgnoreCase(data, start, stop, "content-length:")) {
+                contentLength = parseLong(data, start + "content-length:".length(), stop);
+            } else if (startsWithIgnoreCase(data, start, stop, "transfer-encoding:")) {
+                chunked = true;
+            } else if (startsWithIgnoreCase(data, start, stop, "connection:") && containsIgnoreCase(data, start, stop, "close")) {
+                keepAlive = false;
+            }
+            start = stop + 2;
+        }
+
+        int response;
+        if (chunked || contentLength < 0) {
+            /* Cannot tell where the body ends */
+            response = RESPONSE_BAD_REQUEST;
+            keepAlive = false;
+        } else if (contentLength > MAX_BODY_BYTES) {
+            response = RESPONSE_TOO_LARGE;
+            keepAlive = false;
+        } else {
+            connection.bodyRemaining = contentLength;
+            response = heartbeat(data, lineEnd);
+        }
+        consume(connection, end + 4);
+        respond(connection, response, !keepAlive);
+        return true;
+    }
+
+    /**
+     * Handle the request line, and record the heartbeat if it names a known url.
+     *
+     * @param data request bytes, starting with the request line
+     * @param lineEnd end of the request line
+     * @return response to give
+     */
+    protected int heartbeat(byte[] data, int lineEnd) {
+        int pathStart;
+        if (startsWith(data, 0, lineEnd, "GET ")) {
+            pathStart = 4;
+        } else if (startsWith(data, 0, lineEnd, "POST ")) {
+            pathStart = 5;
+        } else {
+            return RESPONSE_BAD_METHOD;
+        }
+        if (!startsWith(data, pathStart, lineEnd, PATH)) {
+            return RESPONSE_NOT_FOUND;
+        }
+        int tokenStart = pathStart + PATH.length();
+        int tokenEnd = tokenStart;
+        while (tokenEnd < lineEnd && data[tokenEnd] != ' ' && data[tokenEnd] != '?') {
+            tokenEnd++;
+        }
+        Entry entry = table.find(data, tokenStart, tokenEnd - tokenStart);
+        if (entry == null) {
+            return RESPONSE_NOT_FOUND;
+        }
+        entry.lastSeen = clock.wallTime();
+        return RESPONSE_OK;
+    }
+
+    protected void respond(Connection connection, int response, boolean close) {
+        if (response == RESPONSE_OK) {
+            RECEIVED.increment();
+        } else {
+            REJECTED.increment();
+        }
+        connection.out.clear();
+        connection.out.put(close ? CLOSE[response] : KEEP_ALIVE[response]);
+        connection.out.flip();
+        connection.closeAfterWrite = close;
+    }
+
+    protected static int indexOf(byte[] data, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected static boolean endsWith(byte[] data, int end, String suffix) {
+        int start = end - suffix.length();
+        if (start < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (data[start + i] != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean startsWith(byte[] data, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param prefix lower case prefix
+     */
+    protected static boolean startsWithIgnoreCase(byte[] data, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) data[start + i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean containsIgnoreCase(byte[] data, int start, int end, String word) {
+        for (int i = start; i + word.length() <= end; i++) {
+            if (startsWithIgnoreCase(data, i, end, word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the decimal number after optional spaces, or -1 if there is none or it is too long
+     */
+    protected static long parseLong(byte[] data, int start, int end) {
+        while (start < end && data[start] == ' ') {
+            start++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; start < end && data[start] >= '0' && data[start] <= '9'; start++) {
+            value = value * 10 + (data[start] - '0');
+            if (++digits > 18) {
+                return -1;
+            }
+        }
+        return digits != 0 ? value : -1;
+    }
+
+    protected void sweep(long now) {
+        for (int i = open.size() - 1; i >= 0; i--) {
+            Connection connection = open.get(i);
+            if (now - connection.lastActive > IDLE_TIMEOUT_MS) {
+                close(connection);
+            }
+        }
+    }
+
+    protected void close(Connection connection) {
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            /* Nothing to do */
+        }
+        /* Swap the last connection into this one's place */
+        Connection last = open.remove(open.size() - 1);
+        if (last != connection) {
+            last.index = connection.index;
+            open.set(last.index, last);
+        }
+        CONNECTIONS.set(open.size());
+
+        connection.channel = null;
+        connection.key = null;
+        connection.in.clear();
+        connection.out.clear();
+        connection.out.limit(0);
+        connection.scanned = 0;
+        connection.bodyRemaining = 0;
+        connection.closeAfterWrite = false;
+        if (pool.size() < POOL_SIZE) {
+            pool.add(connection);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HeartbeatListener[port=" + getPort() + ", urls=" + table.byId.size() + ", accepted=" + accepted
+                + ", requests=" + requests + ", open=" + open.size() + "]";
+    }
+}
@@ -0,0 +1,182 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Fixed size histogram of latencies in milliseconds. Bucket widths grow geometrically by 20 %,
+ * so a percentile read from the histogram is within 20 % of the true value over the whole range
+ * from 1 ms to about 90 s. Histograms of the same layout can be merged by adding the counts,
+ * which is how hourly aggregates become daily ones.
+ */
+public class LatencyHistogram {
+    protected static final int BUCKETS = 64;
+    protected static final double GROWTH = 1.2;
+
+    /** Exclusive upper bound of each bucket; the last bucket is open ended. */
+    protected static final long[] BOUNDS = new long[BUCKETS];
+
+    static {
+        double bound = 1;
+        for (int i = 0; i < BUCKETS; i++) {
+            BOUNDS[i] = Math.max(i == 0 ? 1 : BOUNDS[i - 1] + 1, (long) Math.ceil(bound));
+            bound *= GROWTH;
+        }
+        BOUNDS[BUCKETS - 1] = Long.MAX_VALUE;
+    }
+
+    protected final long[] counts = new long[BUCKETS];
+    protected long count;
+    protected long min = Long.MAX_VALUE;
+    protected long max = Long.MIN_VALUE;
+
+    protected static int bucket(long value) {
+        int index = Arrays.binarySearch(BOUNDS, value);
+        /* An exact hit on a bound belongs to the next bucket, since bounds are exclusive. */
+        return index >= 0 ? Math.min(index + 1, BUCKETS - 1) : -index - 1;
+    }
+
+    public void record(long value) {
+        counts[bucket(value)] += 1;
+        count += 1;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Halve all counts, so that old observations weigh less than new ones while memory stays fixed.
+     * Nonempty buckets keep at least one observation, so the tails are not forgotten outright.
+     */
+    public void decay() {
+        count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = (counts[i] + 1) / 2;
+            count += counts[i];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return smallest recorded value, or 0 if empty
+     */
+    public long getMin() {
+        return count != 0 ? min : 0;
+    }
+
+    /**
+     * @return largest recorded value, or 0 if empty
+     */
+    public long getMax() {
+        return count != 0 ? max : 0;
+    }
+
+    /**
+     * Estimate a percentile.
+     *
+     * @param q quantile between 0 and 1, e.g. 0.95
+     * @return upper bound of the bucket containing the quantile, clamped to recorded min and max, or 0 if empty
+     */
+    public long percentile(double q) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, BOUNDS[i] - 1));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Serialize as a compact blob: min, max and (bucket, count) pairs of nonempty buckets, as varints.
+     *
+     * @return serialized form
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        writeVarint(out, getMin());
+        writeVarint(out, getMax());
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                writeVarint(out, i);
+                writeVarint(out, counts[i]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param data value from toBytes(), or null
+     * @return deserialized histogram; empty if data is null
+     */
+    public static LatencyHistogram fromBytes(byte[] data) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        if (data == null || data.length == 0) {
+            return histogram;
+        }
+        int[] pos = { 0 };
+        long min = readVarint(data, pos);
+        long max = readVarint(data, pos);
+        while (pos[0] < data.length) {
+            int index = (int) readVarint(data, pos);
+            long n = readVarint(data, pos);
+            histogram.counts[index] += n;
+            histogram.count += n;
+        }
+        if (histogram.count != 0) {
+            histogram.min = min;
+            histogram.max = max;
+        }
+        return histogram;
+    }
+
+    protected static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    protected static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = data[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + count + " min=" + getMin() + " p50=" + percentile(0.5) + " p95=" + percentile(0.95)
+                + " p99=" + percentile(0.99) + " max=" + getMax();
+    }
+}
@@ -0,0 +1,78 @@
+package fi.bel.httpservicemonitor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MonitorStore that keeps the state of the urls in memory, for running the core without a
+ * database, such as in benchmarks. Latency regressions are not tracked.
+ */
+public class MemoryStore implements MonitorStore {
+    /**
+     * What the url table holds about a url.
+     */
+    public static class State {
+        public long lastOk;
+        public long lastCheck;
+        public boolean failing;
+        public int alertState;
+    }
+
+    protected final AlertEvaluator evaluator;
+    protected final Map<Long, State> states = new HashMap<>();
+    protected long recorded;
+
+    /**
+     * @param evaluator alert state to account the results in
+     */
+    public MemoryStore(AlertEvaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    @Override
+    public synchronized void record(List<CheckResult> batch, long now) {
+        for (CheckResult result : batch) {
+            State state = state(result.endpoint.id);
+            state.lastCheck = now;
+            state.failing = !result.isOk();
+            if (!state.failing) {
+                state.lastOk = now;
+            }
+            evaluator.record(result.endpoint.id, result.isOk(), now);
+        }
+        saveAlertStates(evaluator.drainTransitions());
+        recorded += batch.size();
+    }
+
+    protected State state(long id) {
+        State state = states.get(id);
+        if (state == null) {
+            state = new State();
+            states.put(id, state);
+        }
+        return state;
+    }
+
+    @Override
+    public synchronized void saveAlertStates(List<AlertEvaluator.Transition> transitions) {
+        for (AlertEvaluator.Transition transition : transitions) {
+            state(transition.id).alertState = transition.state;
+        }
+    }
+
+    /**
+     * @return total number of results recorded
+     */
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * @return persisted alert state of a url
+     */
+    public synchronized int getAlertState(long id) {
+        State state = states.get(id);
+        return state != null ? state.alertState : AlertEvaluator.STATE_OK;
+    }
+}
@@ -0,0 +1,149 @@
+package fi.bel.httpservicemonitor;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of counters, gauges and histograms. Look a metric up once, when the
+ * class using it is initialized, and keep the reference; updating it after that does not
+ * allocate, so metrics can be updated from the selector thread on every read.
+ *
+ * Metrics live as long as the process does. The text dump is what the stats screen shows.
+ */
+public class Metrics {
+    /**
+     * Monotonically increasing count.
+     */
+    public static class Counter {
+        protected final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long n) {
+            value.addAndGet(n);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(get());
+        }
+    }
+
+    /**
+     * Current level of something, and the highest level seen.
+     */
+    public static class Gauge {
+        protected final AtomicLong value = new AtomicLong();
+        protected final AtomicLong peak = new AtomicLong();
+
+        public void set(long n) {
+            value.set(n);
+            updatePeak(n);
+        }
+
+        public void add(long delta) {
+            updatePeak(value.addAndGet(delta));
+        }
+
+        protected void updatePeak(long n) {
+            long current;
+            while (n > (current = peak.get()) && !peak.compareAndSet(current, n)) {
+                /* Lost a race with another update; try again */
+            }
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        public long getPeak() {
+            return peak.get();
+        }
+
+        @Override
+        public String toString() {
+            return get() + " peak=" + getPeak();
+        }
+    }
+
+    /**
+     * Distribution of durations in milliseconds.
+     */
+    public static class Histogram {
+        protected final LatencyHistogram histogram = new LatencyHistogram();
+
+        public synchronized void record(long valueMs) {
+            histogram.record(valueMs);
+        }
+
+        public synchronized long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return histogram.toString();
+        }
+    }
+
+    protected static final Metrics instance = new Metrics();
+
+    protected final long startTime = System.currentTimeMillis();
+    protected final Map<String, Object> metrics = new TreeMap<>();
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    public synchronized Counter counter(String name) {
+        Counter counter = (Counter) metrics.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            metrics.put(name, counter);
+        }
+        return counter;
+    }
+
+    public synchronized Gauge gauge(String name) {
+        Gauge gauge = (Gauge) metrics.get(name);
+        if (gauge == null) {
+            gauge = new Gauge();
+            metrics.put(name, gauge);
+        }
+        return gauge;
+    }
+
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = (Histogram) metrics.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            metrics.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return start time of the process's metrics, as wall time
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return all metrics, one per line as "name value", sorted by name
+     */
+    public synchronized String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,26 @@
+package fi.bel.httpservicemonitor;
+
+import java.util.List;
+
+/**
+ * Where check results go. The store passes each result it accepts on to the AlertEvaluator,
+ * and persists the changes of alert state it returns.
+ */
+public interface MonitorStore {
+    /**
+     * Record a batch of finished checks, and account for them in the alert state.
+     * Called from the thread that runs the cycle.
+     *
+     * @param batch results in the order they completed
+     * @param now wall time of the results
+     */
+    void record(List<CheckResult> batch, long now);
+
+    /**
+     * Persist changes of alert state. Called with the changes that happen as time passes;
+     * those caused by results are persisted by record, along with the results.
+     *
+     * @param transitions changes of alert state
+     */
+    void saveAlertStates(List<AlertEvaluator.Transition> transitions);
+}
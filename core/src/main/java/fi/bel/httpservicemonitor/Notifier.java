@@ -0,0 +1,14 @@
+package fi.bel.httpservicemonitor;
+
+/**
+ * Tells the user about the outcome of an alert evaluation.
+ */
+public interface Notifier {
+    /**
+     * Show, update or withdraw the alerts. Called after every cycle, whether anything
+     * changed or not.
+     *
+     * @param alert current alert state
+     */
+    void publish(AlertEvaluator.Alert alert);
+}
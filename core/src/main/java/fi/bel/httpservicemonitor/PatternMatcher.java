@@ -0,0 +1,134 @@
+package fi.bel.httpservicemonitor;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton for finding up to 64 byte patterns at once in a stream, one byte at
+ * a time. The automaton is immutable once built and can be shared; the only per-stream state
+ * is the current node and the set of patterns seen so far, which the caller keeps.
+ */
+public class PatternMatcher {
+    public static final int MAX_PATTERNS = 64;
+
+    protected static class Node {
+        protected byte[] keys = new byte[0];
+        protected Node[] next = new Node[0];
+        protected Node fail;
+        /** Bit mask of the patterns that end here, including via the failure chain */
+        protected long output;
+
+        protected Node child(byte b) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == b) {
+                    return next[i];
+                }
+            }
+            return null;
+        }
+
+        protected Node addChild(byte b) {
+            Node node = new Node();
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            next = Arrays.copyOf(next, next.length + 1);
+            keys[keys.length - 1] = b;
+            next[next.length - 1] = node;
+            return node;
+        }
+    }
+
+    /**
+     * Stream position within the automaton.
+     */
+    public static class State {
+        protected Node node;
+        protected long found;
+
+        /**
+         * @return bit mask of the patterns seen so far
+         */
+        public long getFound() {
+            return found;
+        }
+    }
+
+    protected final Node root = new Node();
+    protected final int patternCount;
+
+    /**
+     * @param patterns nonempty byte strings to look for; bit i of the result masks refers to patterns[i]
+     */
+    public PatternMatcher(List<byte[]> patterns) {
+        if (patterns.size() > MAX_PATTERNS) {
+            throw new IllegalArgumentException("At most " + MAX_PATTERNS + " patterns are supported");
+        }
+        patternCount = patterns.size();
+
+        for (int i = 0; i < patterns.size(); i++) {
+            Node node = root;
+            for (byte b : patterns.get(i)) {
+                Node child = node.child(b);
+                node = child != null ? child : node.addChild(b);
+            }
+            node.output |= 1L << i;
+        }
+
+        /* Breadth first, so that the failure target of each node is complete before its children need it. */
+        Queue<Node> queue = new ArrayDeque<>();
+        root.fail = root;
+        for (Node child : root.next) {
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.remove();
+            for (int i = 0; i < node.keys.length; i++) {
+                Node child = node.next[i];
+                Node fail = node.fail;
+                Node target;
+                while ((target = fail.child(node.keys[i])) == null && fail != root) {
+                    fail = fail.fail;
+                }
+                child.fail = target != null ? target : root;
+                child.output |= child.fail.output;
+                queue.add(child);
+            }
+        }
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    public State newState() {
+        State state = new State();
+        state.node = root;
+        return state;
+    }
+
+    /**
+     * Feed bytes to the automaton.
+     *
+     * @param state stream state to update
+     * @param data buffer
+     * @param offset start of the bytes
+     * @param length number of bytes
+     */
+    public void feed(State state, byte[] data, int offset, int length) {
+        Node node = state.node;
+        long found = state.found;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            Node next;
+            while ((next = node.child(b)) == null && node != root) {
+                node = node.fail;
+            }
+            node = next != null ? next : root;
+            found |= node.output;
+        }
+        state.node = node;
+        state.found = found;
+    }
+}
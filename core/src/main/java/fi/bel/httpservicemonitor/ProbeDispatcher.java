@@ -0,0 +1,299 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Gate in front of ProbeEngine that limits how many probes are in flight, so that a long
+ * list of urls does not open all of its connections at once, and a single host does not get
+ * all of its urls probed at the same moment.
+ *
+ * The global limit adapts, AIMD style. Every probe that gets a timely answer raises it by
+ * 1/limit, that is, by about one per round of probes. A timeout, a refused connection, or
+ * an answer much slower than the fastest seen from the same host is a sign of congestion;
+ * when such signs are a large part of the recent outcomes, the limit is halved, at most
+ * once per backoff interval so that one burst of failures only counts once. A few dead
+ * services among many live ones do not make the rest wait. The limit only changes while
+ * probes are waiting for it, so the stragglers at the end of a cycle do not count. Each host has a fixed limit of
+ * its own. Probes over the limits wait in per-host queues, and the hosts take turns when
+ * slots free up.
+ */
+public class ProbeDispatcher {
+    protected static final Logger LOG = Logger.getLogger(ProbeDispatcher.class.getSimpleName());
+    protected static final int MIN_LIMIT = 8;
+    protected static final int MAX_LIMIT = 128;
+    protected static final int INITIAL_LIMIT = 16;
+    protected static final int DEFAULT_HOST_LIMIT = 4;
+    protected static final double BACKOFF_RATIO = 0.5;
+    protected static final long BACKOFF_INTERVAL_MS = 1000;
+    /** Weight of the latest outcome in the congestion rate */
+    protected static final double RATE_ALPHA = 0.05;
+    /** Congestion rate above which the limit is backed off */
+    protected static final double RATE_THRESHOLD = 0.25;
+    /** An answer this many times slower than the fastest from its host counts as congestion */
+    protected static final int SLOW_FACTOR = 4;
+    /** Latency any answer may have without counting as congestion */
+    protected static final long SLOW_SLACK_MS = 250;
+
+    protected static final Metrics.Gauge LIMIT = Metrics.getInstance().gauge("dispatch.limit");
+    protected static final Metrics.Gauge QUEUED = Metrics.getInstance().gauge("dispatch.queued");
+    protected static final Metrics.Counter BACKOFFS = Metrics.getInstance().counter("dispatch.backoffs");
+
+    protected static ProbeDispatcher instance;
+
+    /**
+     * A probe waiting for its turn, and then in flight. When it finishes, it frees its slot
+     * and adjusts the limit by its outcome before passing the result on.
+     */
+    protected class Request implements ProbeEngine.Callback {
+        protected final Host host;
+        protected final String address;
+        protected final int kind;
+        protected final int timeoutMs;
+        protected final boolean head;
+        protected final BodyRule rule;
+        protected final ProbeEngine.Callback callback;
+
+        protected Request(Host host, String address, int kind, int timeoutMs, boolean head, BodyRule rule, ProbeEngine.Callback callback) {
+            this.host = host;
+            this.address = address;
+            this.kind = kind;
+            this.timeoutMs = timeoutMs;
+            this.head = head;
+            this.rule = rule;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onResult(Object result, ProbeEngine.Timing timing) {
+            List<Request> start;
+            synchronized (ProbeDispatcher.this) {
+                running.remove(this);
+                host.inFlight -= 1;
+                inFlight -= 1;
+                adjust(host, result, timing);
+                makeReady(host);
+                start = takeStartable();
+            }
+            start(start);
+            callback.onResult(result, timing);
+        }
+    }
+
+    protected static class Host {
+        protected final String name;
+        protected final Queue<Request> waiting = new ArrayDeque<>();
+        protected int inFlight;
+        /** Whether the host is in the ready queue */
+        protected boolean ready;
+        protected long fastestMs = Long.MAX_VALUE;
+
+        protected Host(String name) {
+            this.name = name;
+        }
+    }
+
+    protected final ProbeEngine engine;
+    protected final Clock clock;
+    protected final int hostLimit;
+    protected final Map<String, Host> hosts = new HashMap<>();
+    /** Hosts that have waiting probes and room for one more in flight, in turn order */
+    protected final Queue<Host> ready = new ArrayDeque<>();
+    /** Probes in flight in the engine */
+    protected final Set<Request> running = new HashSet<>();
+    protected double limit = INITIAL_LIMIT;
+    protected int inFlight;
+    protected int queued;
+    /** Moving average of the share of outcomes that were signs of congestion */
+    protected double congestionRate;
+    protected long lastBackoff = Long.MIN_VALUE / 2;
+
+    /**
+     * @return the process-wide dispatcher over the process-wide engine
+     */
+    public static synchronized ProbeDispatcher getInstance() {
+        if (instance == null) {
+            instance = new ProbeDispatcher(ProbeEngine.getInstance(), Clock.SYSTEM, DEFAULT_HOST_LIMIT);
+        }
+        return instance;
+    }
+
+    /**
+     * @param engine engine to run the probes on
+     * @param clock time source
+     * @param hostLimit most probes in flight to any one host
+     */
+    public ProbeDispatcher(ProbeEngine engine, Clock clock, int hostLimit) {
+        this.engine = engine;
+        this.clock = clock;
+        this.hostLimit = hostLimit;
+        LIMIT.set(INITIAL_LIMIT);
+    }
+
+    /**
+     * @return engine the probes run on
+     */
+    public ProbeEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Start probing an address when the limits allow. The callback is invoked exactly once.
+     *
+     * @see ProbeEngine#submit(String, int, int, boolean, BodyRule, ProbeEngine.Callback)
+     */
+    public void submit(String address, int kind, int timeoutMs, boolean head, BodyRule rule, ProbeEngine.Callback callback) {
+        List<Request> start;
+        synchronized (this) {
+            Host host = host(address);
+            host.waiting.add(new Request(host, address, kind, timeoutMs, head, rule, callback));
+            queued += 1;
+            makeReady(host);
+            start = takeStartable();
+        }
+        start(start);
+    }
+
+    /**
+     * Fail the waiting probes of the given callbacks, and cancel those in flight in the engine.
+     * Probes of other callbacks are not affected.
+     *
+     * @param callbacks callbacks whose probes to fail
+     * @param reason failure to report to the callbacks
+     */
+    public void cancel(Set<? extends ProbeEngine.Callback> callbacks, IOException reason) {
+        List<Request> dropped = new ArrayList<>();
+        Set<Request> cancelled = new HashSet<>();
+        synchronized (this) {
+            for (Host host : hosts.values()) {
+                for (Iterator<Request> i = host.waiting.iterator(); i.hasNext(); ) {
+                    Request request = i.next();
+                    if (callbacks.contains(request.callback)) {
+                        i.remove();
+                        dropped.add(request);
+                        queued -= 1;
+                    }
+                }
+                if (host.ready && host.waiting.isEmpty()) {
+                    host.ready = false;
+                    ready.remove(host);
+                }
+            }
+            for (Request request : running) {
+                if (callbacks.contains(request.callback)) {
+                    cancelled.add(request);
+                }
+            }
+            QUEUED.set(queued);
+        }
+        for (Request request : dropped) {
+            request.callback.onResult(reason, new ProbeEngine.Timing());
+        }
+        engine.cancel(cancelled, reason);
+    }
+
+    protected Host host(String address) {
+        String name;
+        try {
+            URL url = new URL(address);
+            name = url.getHost().toLowerCase(Locale.ROOT) + ":" + url.getPort();
+        } catch (IOException e) {
+            /* The engine reports the bad address as soon as the probe is started */
+            name = "";
+        }
+        Host host = hosts.get(name);
+        if (host == null) {
+            host = new Host(name);
+            hosts.put(name, host);
+        }
+        return host;
+    }
+
+    protected void makeReady(Host host) {
+        if (!host.ready && !host.waiting.isEmpty() && host.inFlight < hostLimit) {
+            host.ready = true;
+            ready.add(host);
+        }
+    }
+
+    /**
+     * Take probes off the queues while there is room, one host at a time.
+     */
+    protected List<Request> takeStartable() {
+        List<Request> start = new ArrayList<>();
+        Host host;
+        while (inFlight < (int) limit && (host = ready.poll()) != null) {
+            host.ready = false;
+            Request request = host.waiting.remove();
+            host.inFlight += 1;
+            inFlight += 1;
+            queued -= 1;
+            running.add(request);
+            start.add(request);
+            makeReady(host);
+        }
+        QUEUED.set(queued);
+        return start;
+    }
+
+    protected void start(List<Request> start) {
+        for (Request request : start) {
+            engine.submit(request.address, request.kind, request.timeoutMs, request.head, request.rule, request);
+        }
+    }
+
+    protected void adjust(Host host, Object result, ProbeEngine.Timing timing) {
+        boolean congested;
+        if (result instanceof SocketTimeoutException || result instanceof ConnectException || result instanceof NoRouteToHostException) {
+            congested = true;
+        } else if (result instanceof IOException && !(result instanceof ContentMismatchException)) {
+            /* Name lookups, bad addresses and protocol errors say nothing about the load */
+            return;
+        } else if (result instanceof ProbeEngine.Reachable) {
+            /* Much faster than a request, so it does not set the pace for the host's requests */
+            congested = false;
+        } else {
+            congested = host.fastestMs != Long.MAX_VALUE && timing.totalMs > host.fastestMs * SLOW_FACTOR + SLOW_SLACK_MS;
+            host.fastestMs = Math.min(host.fastestMs, timing.totalMs);
+        }
+
+        if (queued == 0) {
+            /* The limit is not what holds anything back; the outcome says nothing about it */
+            return;
+        }
+        congestionRate += ((congested ? 1 : 0) - congestionRate) * RATE_ALPHA;
+        if (!congested) {
+            limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+        } else {
+            long now = clock.elapsedTime();
+            if (congestionRate < RATE_THRESHOLD || now - lastBackoff < BACKOFF_INTERVAL_MS) {
+                return;
+            }
+            lastBackoff = now;
+            limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+            BACKOFFS.increment();
+            LOG.fine("Backing off to " + (int) limit + " probes in flight after " + result + " from " + host.name);
+        }
+        LIMIT.set((long) limit);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "ProbeDispatcher[limit=%d, in flight=%d, queued=%d, congestion=%.2f]",
+                (int) limit, inFlight, queued, congestionRate);
+    }
+}
@@ -0,0 +1,1133 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Selector based HTTP prober. A single thread performs non-blocking connect, TLS handshake,
+ * request write and status line parse for every outstanding probe, so the number of
+ * monitored addresses no longer dictates the number of threads blocked on the network.
+ *
+ * Host name lookups are cached in a DnsCache, and concurrent lookups of the same host are
+ * coalesced into one. TLS sessions are cached per host and port by the engine's own SSLContext,
+ * so repeat probes of an origin can resume the session instead of doing a full handshake.
+ *
+ * A probe may carry a BodyRule, in which case the body of a 200 response is streamed through
+ * the rule's matcher using the same small buffer that held the header, and the connection is
+ * closed as soon as the rule is decided. A probe may also be HEAD only.
+ *
+ * Instead of making a request, a probe can stop once the connection is made, or once the
+ * TLS handshake is done, which costs a fraction of the bytes and time of a full request and
+ * still tells whether the service is there. A handshake probe also reads when the server's
+ * certificate chain expires.
+ *
+ * Results are delivered to the probe's callback on the selector thread as either an
+ * Integer status code or an IOException, which is the same contract that
+ * HttpURLConnection based polling used to have, or as Reachable for a probe that did not
+ * make a request, along with the time spent in each phase.
+ */
+public class ProbeEngine implements Runnable {
+    protected static final String TAG = ProbeEngine.class.getSimpleName();
+    protected static final Logger LOG = Logger.getLogger(TAG);
+    protected static final Metrics.Counter PROBES = Metrics.getInstance().counter("probe.started");
+    protected static final Metrics.Gauge IN_FLIGHT = Metrics.getInstance().gauge("probe.inFlight");
+    protected static final Metrics.Counter BYTES_READ = Metrics.getInstance().counter("probe.bytesRead");
+    protected static final int RESOLVER_THREADS = 4;
+    protected static final int MAX_HEADER_BYTES = 8192;
+    protected static final int MAX_REDIRECTS = 5;
+    /** A probe fails after this many timeouts in total, however its phases went */
+    protected static final int OVERALL_TIMEOUT_FACTOR = 3;
+    protected static final int TLS_SESSION_CACHE_SIZE = 256;
+    protected static final int TLS_SESSION_TIMEOUT_S = 60 * 60 * 8;
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+    protected static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    /**
+     * Android's SSLEngine does not check the host name on every version that the app runs
+     * on, but its default HostnameVerifier does. A plain JVM is the other way around: its
+     * default verifier rejects every host.
+     */
+    protected static final boolean ANDROID = System.getProperty("java.vm.name", "").startsWith("Dalvik");
+
+    /* Kinds of probe, as stored in url.probeType */
+    /** Full HTTP request */
+    public static final int PROBE_HTTP = 0;
+    /** TCP connect only */
+    public static final int PROBE_TCP = 1;
+    /** TCP connect and TLS handshake; only connects to a plain http address */
+    public static final int PROBE_TLS = 2;
+    /** No probe: the service sends heartbeats to a HeartbeatListener. Never submitted to the engine. */
+    public static final int PROBE_PUSH = 3;
+
+    protected static ProbeEngine instance;
+
+    /**
+     * Receiver of probe outcomes.
+     */
+    public interface Callback {
+        /**
+         * @param result Integer status code, Reachable or IOException
+         * @param timing time spent in each phase of the probe
+         */
+        void onResult(Object result, Timing timing);
+    }
+
+    /**
+     * Result of a connect or handshake probe that got as far as it was meant to.
+     */
+    public static class Reachable {
+        /** Earliest expiry time in the server's certificate chain, or 0 if there was no handshake */
+        public final long certificateExpiry;
+
+        public Reachable(long certificateExpiry) {
+            this.certificateExpiry = certificateExpiry;
+        }
+
+        @Override
+        public String toString() {
+            return certificateExpiry != 0 ? "reachable, certificate expires " + new Date(certificateExpiry) : "reachable";
+        }
+    }
+
+    /**
+     * Breakdown of where the time of a probe went. Phases that were not reached are 0.
+     * If redirects were followed, each phase is the sum over all requests.
+     */
+    public static class Timing {
+        public long dnsMs;
+        public long connectMs;
+        public long tlsMs;
+        public long firstByteMs;
+        public long totalMs;
+        public boolean dnsCached;
+        public boolean tlsResumed;
+
+        protected final long startTime = now();
+
+        @Override
+        public String toString() {
+            return "dns=" + dnsMs + (dnsCached ? " (cached)" : "") + " connect=" + connectMs
+                    + " tls=" + tlsMs + (tlsResumed ? " (resumed)" : "") + " ttfb=" + firstByteMs + " total=" + totalMs + " ms";
+        }
+    }
+
+    /**
+     * Scheduled piece of work on the selector thread.
+     */
+    public static class Timer implements Comparable<Timer> {
+        protected final long when;
+        protected final Runnable task;
+        protected volatile boolean cancelled;
+
+        protected Timer(long when, Runnable task) {
+            this.when = when;
+            this.task = task;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return when < other.when ? -1 : when > other.when ? 1 : 0;
+        }
+    }
+
+    protected enum State {
+        RESOLVING, CONNECTING, HANDSHAKING, WRITING, READING, BODY, DONE
+    }
+
+    /* States of the chunked transfer coding parser */
+    protected static final int CHUNK_SIZE = 0;
+    protected static final int CHUNK_EXTENSION = 1;
+    protected static final int CHUNK_DATA = 2;
+    protected static final int CHUNK_DATA_END = 3;
+    protected static final int CHUNK_TRAILER = 4;
+
+    /**
+     * State of a single HTTP request, or connect or handshake probe, in flight.
+     */
+    protected static class Probe {
+        protected final URL url;
+        protected final int kind;
+        protected final boolean tls;
+        protected final String host;
+        protected final int port;
+        protected final int timeoutMs;
+        protected final int redirects;
+        protected final boolean head;
+        protected final BodyRule rule;
+        protected final Callback callback;
+        protected final Timing timing;
+
+        protected State state = State.RESOLVING;
+        protected long phaseStart;
+        protected long handshakeStart;
+        protected boolean firstByte;
+        protected SocketChannel channel;
+        protected SelectionKey key;
+        protected SSLEngine engine;
+        protected ByteBuffer request;
+        protected ByteBuffer header;
+        protected ByteBuffer netIn;
+        protected ByteBuffer netOut;
+        protected ByteBuffer appIn;
+        protected Timer deadline;
+        /** Deadline of the whole probe, not restarted between phases */
+        protected Timer overall;
+
+        /* Response body state, when there is a rule to check */
+        protected int code;
+        protected PatternMatcher.State match;
+        protected long scanned;
+        protected long bodyRemaining;
+        protected boolean chunked;
+        protected int chunkState;
+        protected int trailerLineLength;
+
+        protected Probe(URL url, int kind, int timeoutMs, boolean head, BodyRule rule, int redirects, Callback callback, Timing timing) throws IOException {
+            this.url = url;
+            this.kind = kind;
+            this.timeoutMs = timeoutMs;
+            this.head = head;
+            this.rule = head ? null : rule;
+            this.redirects = redirects;
+            this.callback = callback;
+            this.timing = timing;
+
+            String protocol = url.getProtocol();
+            if ("http".equals(protocol)) {
+                tls = false;
+            } else if ("https".equals(protocol)) {
+                tls = true;
+            } else {
+                throw new MalformedURLException("Unsupported protocol: " + protocol);
+            }
+
+            String urlHost = url.getHost();
+            if (urlHost.startsWith("[") && urlHost.endsWith("]")) {
+                urlHost = urlHost.substring(1, urlHost.length() - 1);
+            }
+            host = urlHost;
+            port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            if (kind != PROBE_HTTP) {
+                return;
+            }
+
+            header = ByteBuffer.allocate(MAX_HEADER_BYTES);
+            String file = url.getFile();
+            String hostHeader = url.getPort() != -1 ? url.getHost() + ":" + url.getPort() : url.getHost();
+            request = ByteBuffer.wrap(((head ? "HEAD " : "GET ") + (file.isEmpty() ? "/" : file) + " HTTP/1.1\r\n"
+                    + "Host: " + hostHeader + "\r\n"
+                    + "User-Agent: HttpServiceMonitor\r\n"
+                    + "Accept: */*\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n").getBytes(ASCII));
+        }
+    }
+
+    protected final Selector selector;
+    protected final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    protected final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    protected final ExecutorService resolver;
+    protected final SSLContext sslContext;
+    protected final Thread thread;
+    protected final DnsCache dnsCache = new DnsCache();
+    /** Probes waiting for a lookup in progress, by host name */
+    protected final Map<String, List<Probe>> resolving = new HashMap<>();
+    /** Probes started and not yet done; only used by the selector thread */
+    protected final Set<Probe> active = new HashSet<>();
+
+    /* Statistics for estimating what the caches save; only written by the selector thread */
+    protected volatile long dnsHits;
+    protected volatile long dnsLookups;
+    protected volatile long dnsLookupMs;
+    protected volatile long tlsFull;
+    protected volatile long tlsFullMs;
+    protected volatile long tlsResumed;
+    protected volatile long tlsResumedMs;
+
+    /**
+     * Return the process-wide engine, starting its selector thread on first use.
+     *
+     * @return shared engine
+     */
+    public static synchronized ProbeEngine getInstance() {
+        if (instance == null) {
+            try {
+                instance = new ProbeEngine();
+            } catch (IOException | java.security.GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to start probe engine", e);
+            }
+        }
+        return instance;
+    }
+
+    protected ProbeEngine() throws IOException, java.security.GeneralSecurityException {
+        selector = Selector.open();
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, null, null);
+        sslContext.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_S);
+        resolver = Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable, TAG + "-resolver");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start probing an address. The callback is invoked exactly once.
+     *
+     * @param address URL to GET
+     * @param timeoutMs connect and response timeout, each
+     * @param callback receiver of the outcome
+     */
+    public void submit(String address, int timeoutMs, Callback callback) {
+        submit(address, timeoutMs, false, null, callback);
+    }
+
+    /**
+     * Start probing an address. The callback is invoked exactly once.
+     *
+     * @param address URL to request
+     * @param timeoutMs connect and response timeout, each
+     * @param head whether to make a HEAD request instead of GET
+     * @param rule content rule for the body of a 200 response, or null; ignored for HEAD
+     * @param callback receiver of the outcome
+     */
+    public void submit(String address, int timeoutMs, boolean head, BodyRule rule, Callback callback) {
+        submit(address, PROBE_HTTP, timeoutMs, head, rule, callback);
+    }
+
+    /**
+     * Start probing an address. The callback is invoked exactly once.
+     *
+     * @param address URL to request, or whose host and port to connect to
+     * @param kind PROBE_HTTP, PROBE_TCP or PROBE_TLS
+     * @param timeoutMs connect and response timeout, each
+     * @param head whether to make a HEAD request instead of GET
+     * @param rule content rule for the body of a 200 response, or null; ignored for HEAD
+     * @param callback receiver of the outcome
+     */
+    public void submit(String address, int kind, int timeoutMs, boolean head, BodyRule rule, final Callback callback) {
+        final Probe probe;
+        Timing timing = new Timing();
+        try {
+            probe = new Probe(new URL(address), kind, timeoutMs, head, rule, 0, callback, timing);
+        } catch (IOException e) {
+            callback.onResult(e, timing);
+            return;
+        }
+        PROBES.increment();
+        IN_FLIGHT.add(1);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                start(probe);
+            }
+        });
+    }
+
+    /**
+     * Run a task on the selector thread after a delay.
+     *
+     * @param delayMs delay in milliseconds
+     * @param task work to do
+     * @return handle which can be cancelled
+     */
+    public Timer schedule(long delayMs, Runnable task) {
+        final Timer timer = new Timer(now() + delayMs, task);
+        if (Thread.currentThread() == thread) {
+            timers.add(timer);
+        } else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    timers.add(timer);
+                }
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Finish the probes in flight to the given callbacks with a failure, such as when the
+     * cycle they belong to is aborted and waiting for the timeouts would only keep the device
+     * awake. Other probes, and probes submitted after this call, are not affected.
+     *
+     * @param callbacks callbacks whose probes to finish; not modified afterwards
+     * @param reason failure to report to the callbacks
+     */
+    public void cancel(final Set<? extends Callback> callbacks, final IOException reason) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Probe> cancelled = new ArrayList<>();
+                for (Probe probe : active) {
+                    if (callbacks.contains(probe.callback)) {
+                        cancelled.add(probe);
+                    }
+                }
+                LOG.info("Cancelling " + cancelled.size() + " probes: " + reason.getMessage());
+                for (Probe probe : cancelled) {
+                    finish(probe, reason);
+                }
+            }
+        });
+    }
+
+    protected void execute(Runnable task) {
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    protected static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+
+                long wait = 0;
+                long now = now();
+                Timer timer;
+                while ((timer = timers.peek()) != null) {
+                    if (timer.cancelled) {
+                        timers.poll();
+                    } else if (timer.when <= now) {
+                        timers.poll();
+                        timer.task.run();
+                    } else {
+                        wait = timer.when - now;
+                        break;
+                    }
+                }
+
+                if (!pending.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(wait);
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Probe probe = (Probe) key.attachment();
+                    try {
+                        pump(probe);
+                    } catch (IOException e) {
+                        finish(probe, e);
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (RuntimeException | IOException e) {
+                /* Something is badly wrong if we get here; keep serving the remaining probes. */
+                LOG.log(Level.SEVERE, "Selector loop failure", e);
+            }
+        }
+    }
+
+    protected void start(final Probe probe) {
+        active.add(probe);
+        probe.phaseStart = now();
+        arm(probe);
+        probe.overall = schedule((long) probe.timeoutMs * OVERALL_TIMEOUT_FACTOR, new Runnable() {
+            @Override
+            public void run() {
+                finish(probe, new SocketTimeoutException("Timed out while " + probe.state.name().toLowerCase()
+                        + " " + probe.url + " after " + OVERALL_TIMEOUT_FACTOR + " timeouts in total"));
+            }
+        });
+
+        DnsCache.Entry entry = dnsCache.get(probe.host, probe.phaseStart);
+        if (entry != null) {
+            dnsHits += 1;
+            probe.timing.dnsCached = true;
+            resolved(probe, entry);
+            return;
+        }
+
+        List<Probe> waiting = resolving.get(probe.host);
+        if (waiting != null) {
+            waiting.add(probe);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(probe);
+        resolving.put(probe.host, waiting);
+
+        final String host = probe.host;
+        resolver.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long lookupStart = now();
+                InetAddress address = null;
+                UnknownHostException failure = null;
+                try {
+                    address = InetAddress.getByName(host);
+                } catch (UnknownHostException e) {
+                    failure = e;
+                }
+
+                final InetAddress finalAddress = address;
+                final UnknownHostException finalFailure = failure;
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long now = now();
+                        dnsLookups += 1;
+                        dnsLookupMs += now - lookupStart;
+                        if (finalAddress != null) {
+                            dnsCache.putAddress(host, finalAddress, now);
+                        } else {
+                            dnsCache.putFailure(host, finalFailure, now);
+                        }
+                        DnsCache.Entry entry = dnsCache.get(host, now);
+                        for (Probe probe : resolving.remove(host)) {
+                            resolved(probe, entry);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    protected void resolved(Probe probe, DnsCache.Entry entry) {
+        if (entry.failure != null) {
+            probe.timing.dnsMs += lap(probe);
+            UnknownHostException e = new UnknownHostException(entry.failure.getMessage());
+            e.initCause(entry.failure);
+            finish(probe, e);
+        } else {
+            connect(probe, entry.address);
+        }
+    }
+
+    protected void connect(Probe probe, InetAddress address) {
+        if (probe.state != State.RESOLVING) {
+            return;
+        }
+        probe.timing.dnsMs += lap(probe);
+        try {
+            probe.state = State.CONNECTING;
+            arm(probe);
+            probe.channel = SocketChannel.open();
+            probe.channel.configureBlocking(false);
+            probe.key = probe.channel.register(selector, 0, probe);
+            probe.channel.connect(new InetSocketAddress(address, probe.port));
+            pump(probe);
+        } catch (IOException e) {
+            finish(probe, e);
+        }
+    }
+
+    /**
+     * (Re)start the timeout of the current phase.
+     */
+    protected void arm(final Probe probe) {
+        if (probe.deadline != null) {
+            probe.deadline.cancel();
+        }
+        final State state = probe.state;
+        probe.deadline = schedule(probe.timeoutMs, new Runnable() {
+            @Override
+            public void run() {
+                if (probe.state == state) {
+                    finish(probe, new SocketTimeoutException("Timed out while " + state.name().toLowerCase()
+                            + " " + probe.url));
+                }
+            }
+        });
+    }
+
+    /**
+     * Advance the probe as far as possible without blocking.
+     */
+    protected void pump(Probe probe) throws IOException {
+        while (true) {
+            switch (probe.state) {
+                case CONNECTING:
+                    if (!probe.channel.finishConnect()) {
+                        interest(probe, SelectionKey.OP_CONNECT);
+                        return;
+                    }
+                    probe.timing.connectMs += lap(probe);
+                    if (probe.kind == PROBE_TCP || probe.kind == PROBE_TLS && !probe.tls) {
+                        finish(probe, new Reachable(0));
+                        return;
+                    }
+                    if (probe.tls) {
+                        probe.engine = sslContext.createSSLEngine(probe.host, probe.port);
+                        probe.engine.setUseClientMode(true);
+                        if (!ANDROID) {
+                            SSLParameters parameters = probe.engine.getSSLParameters();
+                            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                            probe.engine.setSSLParameters(parameters);
+                        }
+                        int packetSize = probe.engine.getSession().getPacketBufferSize();
+                        probe.netIn = ByteBuffer.allocate(packetSize);
+                        probe.netOut = ByteBuffer.allocate(packetSize);
+                        probe.appIn = ByteBuffer.allocate(probe.engine.getSession().getApplicationBufferSize());
+                        probe.handshakeStart = System.currentTimeMillis();
+                        probe.engine.beginHandshake();
+                        probe.state = State.HANDSHAKING;
+                    } else {
+                        probe.state = State.WRITING;
+                    }
+                    arm(probe);
+                    break;
+
+                case HANDSHAKING:
+                    if (!handshake(probe)) {
+                        return;
+                    }
+                    if (ANDROID && !HttpsURLConnection.getDefaultHostnameVerifier().verify(probe.host, probe.engine.getSession())) {
+                        throw new SSLPeerUnverifiedException("Hostname " + probe.host + " not verified");
+                    }
+                    long handshakeMs = lap(probe);
+                    probe.timing.tlsMs += handshakeMs;
+                    /* A resumed session was created by an earlier handshake */
+                    if (probe.engine.getSession().getCreationTime() < probe.handshakeStart) {
+                        probe.timing.tlsResumed = true;
+                        tlsResumed += 1;
+                        tlsResumedMs += handshakeMs;
+                    } else {
+                        tlsFull += 1;
+                        tlsFullMs += handshakeMs;
+                    }
+                    if (probe.kind == PROBE_TLS) {
+                        finish(probe, new Reachable(certificateExpiry(probe.engine.getSession())));
+                        return;
+                    }
+                    probe.state = State.WRITING;
+                    break;
+
+                case WRITING:
+                    if (!(probe.tls ? writeTls(probe) : writePlain(probe))) {
+                        interest(probe, SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    lap(probe);
+                    probe.state = State.READING;
+                    arm(probe);
+                    break;
+
+                case READING:
+                    int n = probe.tls ? readTls(probe) : readPlain(probe);
+                    if (n > 0 && !probe.firstByte) {
+                        probe.firstByte = true;
+                        probe.timing.firstByteMs += lap(probe);
+                    }
+                    if (n != 0 && parse(probe, n == -1)) {
+                        if (probe.state == State.DONE) {
+                            return;
+                        }
+                        break;
+                    }
+                    if (n == -1) {
+                        throw new EOFException("Unexpected end of stream from " + probe.url);
+                    }
+                    if (n == 0) {
+                        interest(probe, SelectionKey.OP_READ);
+                        return;
+                    }
+                    break;
+
+                case BODY:
+                    /* The buffer may still hold body bytes that arrived with the header */
+                    boolean eof = false;
+                    if (probe.header.position() == 0) {
+                        n = probe.tls ? readTls(probe) : readPlain(probe);
+                        if (n == 0) {
+                            interest(probe, SelectionKey.OP_READ);
+                            return;
+                        }
+                        eof = n == -1;
+                    }
+                    if (body(probe, eof)) {
+                        return;
+                    }
+                    break;
+
+                default:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * @return time since the previous phase change, which becomes the start of the next phase
+     */
+    protected static long lap(Probe probe) {
+        long now = now();
+        long elapsed = now - probe.phaseStart;
+        probe.phaseStart = now;
+        return elapsed;
+    }
+
+    /**
+     * @return earliest expiry time in the peer's certificate chain, or 0 if it has none
+     */
+    protected static long certificateExpiry(SSLSession session) throws SSLPeerUnverifiedException {
+        long expiry = 0;
+        for (Certificate certificate : session.getPeerCertificates()) {
+            if (certificate instanceof X509Certificate) {
+                long notAfter = ((X509Certificate) certificate).getNotAfter().getTime();
+                expiry = expiry == 0 ? notAfter : Math.min(expiry, notAfter);
+            }
+        }
+        return expiry;
+    }
+
+    protected static void interest(Probe probe, int ops) {
+        probe.key.interestOps(ops);
+    }
+
+    /**
+     * Drive the TLS handshake.
+     *
+     * @return true when the handshake is complete
+     */
+    protected static boolean handshake(Probe probe) throws IOException {
+        SSLEngine engine = probe.engine;
+        while (true) {
+            if (!flush(probe)) {
+                interest(probe, SelectionKey.OP_WRITE);
+                return false;
+            }
+
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            switch (status) {
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    return true;
+
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+
+                case NEED_WRAP:
+                    checkClosed(engine.wrap(EMPTY, probe.netOut));
+                    break;
+
+                default:
+                    probe.netIn.flip();
+                    SSLEngineResult result = engine.unwrap(probe.netIn, probe.appIn);
+                    probe.netIn.compact();
+                    checkClosed(result);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int n = read(probe, probe.netIn);
+                        if (n == -1) {
+                            throw new SSLException("Connection closed during handshake with " + probe.url);
+                        }
+                        if (n == 0) {
+                            interest(probe, SelectionKey.OP_READ);
+                            return false;
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    protected static void checkClosed(SSLEngineResult result) throws SSLException {
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("TLS session closed by peer");
+        }
+    }
+
+    /**
+     * Write out pending TLS records.
+     *
+     * @return true if nothing remains to be written
+     */
+    protected static boolean flush(Probe probe) throws IOException {
+        if (probe.netOut.position() == 0) {
+            return true;
+        }
+        probe.netOut.flip();
+        probe.channel.write(probe.netOut);
+        probe.netOut.compact();
+        return probe.netOut.position() == 0;
+    }
+
+    protected static boolean writePlain(Probe probe) throws IOException {
+        probe.channel.write(probe.request);
+        return !probe.request.hasRemaining();
+    }
+
+    protected static boolean writeTls(Probe probe) throws IOException {
+        while (probe.request.hasRemaining()) {
+            if (!flush(probe)) {
+                return false;
+            }
+            checkClosed(probe.engine.wrap(probe.request, probe.netOut));
+        }
+        return flush(probe);
+    }
+
+    /**
+     * Read from the network, counting the bytes.
+     */
+    protected static int read(Probe probe, ByteBuffer buffer) throws IOException {
+        int n = probe.channel.read(buffer);
+        if (n > 0) {
+            BYTES_READ.add(n);
+        }
+        return n;
+    }
+
+    /**
+     * Read into the header buffer.
+     *
+     * @return number of bytes read, or -1 on end of stream
+     */
+    protected static int readPlain(Probe probe) throws IOException {
+        if (!probe.header.hasRemaining()) {
+            throw new IOException("Response header too large from " + probe.url);
+        }
+        return read(probe, probe.header);
+    }
+
+    /**
+     * Read and decrypt into the header buffer, as much as fits. Decrypted bytes that do not fit
+     * stay in appIn for the next call.
+     *
+     * @return number of plaintext bytes produced, or -1 on end of stream
+     */
+    protected static int readTls(Probe probe) throws IOException {
+        if (!probe.header.hasRemaining()) {
+            throw new IOException("Response header too large from " + probe.url);
+        }
+
+        int produced = 0;
+        boolean eof = false;
+        boolean readNetwork = false;
+        while (true) {
+            probe.appIn.flip();
+            int n = Math.min(probe.appIn.remaining(), probe.header.remaining());
+            probe.header.put(probe.appIn.array(), probe.appIn.position(), n);
+            probe.appIn.position(probe.appIn.position() + n);
+            probe.appIn.compact();
+            produced += n;
+            if (!probe.header.hasRemaining() || eof) {
+                break;
+            }
+
+            /* appIn is empty now, so unwrap cannot overflow it */
+            probe.netIn.flip();
+            SSLEngineResult result = probe.engine.unwrap(probe.netIn, probe.appIn);
+            probe.netIn.compact();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                eof = true;
+                continue;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                    || result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                if (readNetwork) {
+                    break;
+                }
+                readNetwork = true;
+                if (read(probe, probe.netIn) == -1) {
+                    eof = true;
+                }
+            }
+        }
+        return produced == 0 && eof ? -1 : produced;
+    }
+
+    /**
+     * Look at what we have received so far and decide the outcome if possible.
+     *
+     * @param eof whether the peer has closed the connection
+     * @return true if the probe is finished
+     */
+    protected boolean parse(Probe probe, boolean eof) throws IOException {
+        String text = new String(probe.header.array(), 0, probe.header.position(), ASCII);
+        int lineEnd = text.indexOf("\r\n");
+        if (lineEnd == -1) {
+            return false;
+        }
+
+        String statusLine = text.substring(0, lineEnd);
+        if (!statusLine.startsWith("HTTP/") || statusLine.length() < 12 || statusLine.charAt(8) != ' ') {
+            throw new IOException("Malformed status line from " + probe.url + ": " + statusLine);
+        }
+        int code;
+        try {
+            code = Integer.parseInt(statusLine.substring(9, 12));
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Malformed status line from " + probe.url + ": " + statusLine);
+        }
+
+        if (code >= 300 && code < 400 && code != 304 && probe.redirects < MAX_REDIRECTS) {
+            int headerEnd = text.indexOf("\r\n\r\n");
+            if (headerEnd == -1 && !eof) {
+                return false;
+            }
+            String location = findHeader(text.substring(lineEnd + 2, headerEnd == -1 ? text.length() : headerEnd), "location");
+            if (location != null) {
+                URL target = new URL(probe.url, location);
+                /* Like HttpURLConnection, we do not follow redirects that change protocol. */
+                if (target.getProtocol().equals(probe.url.getProtocol())) {
+                    Probe next = new Probe(target, PROBE_HTTP, probe.timeoutMs, probe.head, probe.rule, probe.redirects + 1, probe.callback, probe.timing);
+                    close(probe);
+                    start(next);
+                    return true;
+                }
+            }
+        }
+
+        if (code != 200 || probe.rule == null) {
+            finish(probe, code);
+            return true;
+        }
+
+        /* Rule to check: find out how the body is delimited, and scan it */
+        int headerEnd = text.indexOf("\r\n\r\n");
+        if (headerEnd == -1) {
+            if (eof) {
+                throw new EOFException("Unexpected end of stream from " + probe.url);
+            }
+            return false;
+        }
+        String headers = text.substring(lineEnd + 2, headerEnd);
+        String transferEncoding = findHeader(headers, "transfer-encoding");
+        String contentLength = findHeader(headers, "content-length");
+        probe.code = code;
+        probe.chunked = transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+        probe.bodyRemaining = -1;
+        if (!probe.chunked && contentLength != null) {
+            try {
+                probe.bodyRemaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Malformed Content-Length from " + probe.url + ": " + contentLength);
+            }
+        }
+        probe.match = probe.rule.newState();
+
+        /* Whatever followed the header is the start of the body */
+        int bodyStart = headerEnd + 4;
+        int leftover = probe.header.position() - bodyStart;
+        System.arraycopy(probe.header.array(), bodyStart, probe.header.array(), 0, leftover);
+        probe.header.position(leftover);
+        probe.state = State.BODY;
+        arm(probe);
+        if (leftover == 0 && (probe.bodyRemaining == 0 || eof)) {
+            body(probe, true);
+        }
+        return true;
+    }
+
+    /**
+     * Pass the bytes in the buffer through the transfer coding to the rule, and empty the buffer.
+     *
+     * @param eof whether the peer has closed the connection
+     * @return true if the probe is finished
+     */
+    protected boolean body(Probe probe, boolean eof) {
+        byte[] data = probe.header.array();
+        int end = probe.header.position();
+        int pos = 0;
+        boolean complete = false;
+        while (pos < end && !complete) {
+            if (!probe.chunked) {
+                int n = end - pos;
+                if (probe.bodyRemaining != -1) {
+                    n = (int) Math.min(n, probe.bodyRemaining);
+                    probe.bodyRemaining -= n;
+                    complete = probe.bodyRemaining == 0;
+                }
+                complete |= scan(probe, data, pos, n);
+                pos += n;
+                continue;
+            }
+
+            byte b = data[pos];
+            switch (probe.chunkState) {
+                case CHUNK_SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit != -1) {
+                        probe.bodyRemaining = (probe.bodyRemaining == -1 ? 0 : probe.bodyRemaining) * 16 + digit;
+                    } else if (b == ';') {
+                        probe.chunkState = CHUNK_EXTENSION;
+                    } else if (b == '\n') {
+                        probe.chunkState = probe.bodyRemaining > 0 ? CHUNK_DATA : CHUNK_TRAILER;
+                    }
+                    pos += 1;
+                    break;
+
+                case CHUNK_EXTENSION:
+                    if (b == '\n') {
+                        probe.chunkState = probe.bodyRemaining > 0 ? CHUNK_DATA : CHUNK_TRAILER;
+                    }
+                    pos += 1;
+                    break;
+
+                case CHUNK_DATA:
+                    int n = (int) Math.min(end - pos, probe.bodyRemaining);
+                    complete = scan(probe, data, pos, n);
+                    probe.bodyRemaining -= n;
+                    pos += n;
+                    if (probe.bodyRemaining == 0) {
+                        probe.chunkState = CHUNK_DATA_END;
+                    }
+                    break;
+
+                case CHUNK_DATA_END:
+                    if (b == '\n') {
+                        probe.chunkState = CHUNK_SIZE;
+                        probe.bodyRemaining = -1;
+                    }
+                    pos += 1;
+                    break;
+
+                default:
+                    /* Trailer lines end with an empty line */
+                    if (b == '\n') {
+                        complete = probe.trailerLineLength == 0;
+                        probe.trailerLineLength = 0;
+                    } else if (b != '\r') {
+                        probe.trailerLineLength += 1;
+                    }
+                    pos += 1;
+                    break;
+            }
+
+            if (complete || probe.rule.decide(probe.match, false) != null) {
+                break;
+            }
+        }
+        probe.header.clear();
+
+        String decision = probe.rule.decide(probe.match, complete || eof);
+        if (decision == null) {
+            return false;
+        }
+        finish(probe, decision.isEmpty() ? probe.code : new ContentMismatchException(probe.code, decision + " at " + probe.url));
+        return true;
+    }
+
+    /**
+     * Feed body bytes to the rule, up to its byte limit.
+     *
+     * @return true if the byte limit has been reached
+     */
+    protected static boolean scan(Probe probe, byte[] data, int offset, int length) {
+        int n = (int) Math.min(length, probe.rule.getMaxBytes() - probe.scanned);
+        probe.rule.feed(probe.match, data, offset, n);
+        probe.scanned += n;
+        return probe.scanned >= probe.rule.getMaxBytes();
+    }
+
+    protected static String findHeader(String headers, String name) {
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    protected void close(Probe probe) {
+        active.remove(probe);
+        probe.state = State.DONE;
+        if (probe.deadline != null) {
+            probe.deadline.cancel();
+        }
+        if (probe.overall != null) {
+            probe.overall.cancel();
+        }
+        if (probe.channel != null) {
+            try {
+                probe.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    protected void finish(Probe probe, Object result) {
+        if (probe.state == State.DONE) {
+            return;
+        }
+        if (probe.state == State.CONNECTING && result instanceof IOException) {
+            /* The host may have moved */
+            dnsCache.invalidate(probe.host);
+        }
+        close(probe);
+        IN_FLIGHT.add(-1);
+        probe.timing.totalMs = now() - probe.timing.startTime;
+        probe.callback.onResult(result, probe.timing);
+    }
+
+    /**
+     * Estimate the time saved by the DNS and TLS session caches since the engine started.
+     *
+     * @return human readable summary
+     */
+    public String describeSavings() {
+        long lookups = dnsLookups;
+        long avgLookupMs = lookups != 0 ? dnsLookupMs / lookups : 0;
+        long full = tlsFull;
+        long resumed = tlsResumed;
+        long avgFullMs = full != 0 ? tlsFullMs / full : 0;
+        long avgResumedMs = resumed != 0 ? tlsResumedMs / resumed : 0;
+        long savedMs = dnsHits * avgLookupMs + resumed * Math.max(0, avgFullMs - avgResumedMs);
+        return "DNS: " + dnsHits + " cached, " + lookups + " looked up (avg " + avgLookupMs + " ms); "
+                + "TLS: " + resumed + " resumed (avg " + avgResumedMs + " ms), " + full + " full (avg " + avgFullMs + " ms); "
+                + "saved about " + savedMs + " ms";
+    }
+}
@@ -0,0 +1,66 @@
+package fi.bel.httpservicemonitor;
+
+import java.util.Random;
+
+/**
+ * Decides whether and when a failed probe is attempted again. Delays grow exponentially
+ * from the initial delay up to the maximum, with random jitter so that probes which failed
+ * together do not all retry in the same instant.
+ */
+public class RetryPolicy {
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 5000, 2.0, 60000, 0.2, 1000 * 60 * 4);
+
+    protected static final Random random = new Random();
+
+    protected final int maxAttempts;
+    protected final long initialDelayMs;
+    protected final double multiplier;
+    protected final long maxDelayMs;
+    protected final double jitter;
+    protected final long deadlineMs;
+
+    /**
+     * @param maxAttempts total number of attempts, including the first
+     * @param initialDelayMs delay before the second attempt
+     * @param multiplier growth factor of the delay per attempt
+     * @param maxDelayMs upper limit of a single delay
+     * @param jitter fraction of the delay that is randomized, 0 to 1
+     * @param deadlineMs no attempt is started later than this after the first one
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMs, double multiplier, long maxDelayMs, double jitter, long deadlineMs) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMs = initialDelayMs;
+        this.multiplier = multiplier;
+        this.maxDelayMs = maxDelayMs;
+        this.jitter = jitter;
+        this.deadlineMs = deadlineMs;
+    }
+
+    /**
+     * Compute the delay before the next attempt.
+     *
+     * @param attempt number of attempts made so far, 1 or more
+     * @param elapsedMs time since the first attempt started
+     * @return delay in milliseconds, or -1 if no more attempts should be made
+     */
+    public long nextDelay(int attempt, long elapsedMs) {
+        if (attempt >= maxAttempts) {
+            return -1;
+        }
+
+        double delay = Math.min(initialDelayMs * Math.pow(multiplier, attempt - 1), maxDelayMs);
+        delay -= delay * jitter * random.nextDouble();
+        long delayMs = (long) delay;
+
+        if (elapsedMs + delayMs > deadlineMs) {
+            return -1;
+        }
+        return delayMs;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy[attempts=" + maxAttempts + ", initial=" + initialDelayMs + " ms, x" + multiplier
+                + ", max=" + maxDelayMs + " ms, jitter=" + jitter + ", deadline=" + deadlineMs + " ms]";
+    }
+}
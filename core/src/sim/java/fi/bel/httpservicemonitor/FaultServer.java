@@ -0,0 +1,311 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Local HTTP server that stands in for any number of monitored services, and misbehaves
+ * on request. Each request says in its query string how it wants to be answered:
+ *
+ * code=N          status code of the response, 200 by default
+ * latency=MS      wait this long before answering
+ * fault=timeout   read the request and never answer
+ * fault=reset     reset the connection instead of answering
+ * fault=slow      send the response one byte at a time, every drip=MS (100 by default)
+ *
+ * All connections are served by one selector thread, so thousands of virtual endpoints
+ * cost only their sockets.
+ */
+public class FaultServer implements Runnable {
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+    protected static final int MAX_REQUEST_BYTES = 4096;
+
+    protected static final int FAULT_NONE = 0;
+    protected static final int FAULT_TIMEOUT = 1;
+    protected static final int FAULT_RESET = 2;
+    protected static final int FAULT_SLOW = 3;
+
+    protected static class Connection {
+        protected final SocketChannel channel;
+        protected final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        protected SelectionKey key;
+        protected boolean answered;
+        protected int fault;
+        protected int code = 200;
+        protected int dripMs = 100;
+        protected ByteBuffer out;
+
+        protected Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    protected static class Timer implements Comparable<Timer> {
+        protected final long time;
+        protected final Connection connection;
+
+        protected Timer(long time, Connection connection) {
+            this.time = time;
+            this.connection = connection;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return time < other.time ? -1 : time > other.time ? 1 : 0;
+        }
+    }
+
+    protected final Selector selector;
+    protected final ServerSocketChannel server;
+    protected final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    protected final Thread thread;
+    protected volatile boolean running = true;
+
+    /* Statistics, written by the selector thread only */
+    protected volatile long accepted;
+    protected volatile long answered;
+    protected volatile long reset;
+    protected volatile long timedOut;
+    protected volatile int open;
+    protected volatile int peakOpen;
+
+    public FaultServer() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this, FaultServer.class.getSimpleName());
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        server.close();
+        selector.close();
+    }
+
+    /**
+     * @param query query string describing the behavior, without the '?'
+     * @return URL that gets that behavior
+     */
+    public String url(String path, String query) {
+        return "http://127.0.0.1:" + server.socket().getLocalPort() + path + "?" + query;
+    }
+
+    protected static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long wait = 0;
+                if (!timers.isEmpty()) {
+                    wait = Math.max(1, timers.peek().time - now());
+                }
+                selector.select(wait);
+
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+
+                long now = now();
+                while (!timers.isEmpty() && timers.peek().time <= now) {
+                    Connection connection = timers.remove().connection;
+                    try {
+                        fire(connection);
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                close((Connection) key.attachment());
+            }
+        }
+    }
+
+    protected void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            accepted += 1;
+            open += 1;
+            peakOpen = Math.max(peakOpen, open);
+        }
+    }
+
+    protected void read(Connection connection) throws IOException {
+        if (connection.answered) {
+            /* Only waiting for the client to go away; discard anything it sends */
+            connection.in.clear();
+        }
+        int n = connection.channel.read(connection.in);
+        if (n == -1) {
+            if (connection.fault == FAULT_TIMEOUT) {
+                timedOut += 1;
+            }
+            close(connection);
+            return;
+        }
+        if (connection.answered) {
+            return;
+        }
+
+        String text = new String(connection.in.array(), 0, connection.in.position(), ASCII);
+        if (!text.contains("\r\n\r\n")) {
+            if (!connection.in.hasRemaining()) {
+                close(connection);
+            }
+            return;
+        }
+
+        connection.answered = true;
+        long latency = 0;
+        String requestLine = text.substring(0, text.indexOf("\r\n"));
+        int queryStart = requestLine.indexOf('?');
+        int queryEnd = requestLine.lastIndexOf(' ');
+        if (queryStart != -1 && queryEnd > queryStart) {
+            for (String parameter : requestLine.substring(queryStart + 1, queryEnd).split("&")) {
+                int eq = parameter.indexOf('=');
+                if (eq == -1) {
+                    continue;
+                }
+                String name = parameter.substring(0, eq);
+                String value = parameter.substring(eq + 1);
+                try {
+                    if (name.equals("code")) {
+                        connection.code = Integer.parseInt(value);
+                    } else if (name.equals("latency")) {
+                        latency = Long.parseLong(value);
+                    } else if (name.equals("drip")) {
+                        connection.dripMs = Integer.parseInt(value);
+                    } else if (name.equals("fault")) {
+                        connection.fault = value.equals("timeout") ? FAULT_TIMEOUT
+                                : value.equals("reset") ? FAULT_RESET
+                                : value.equals("slow") ? FAULT_SLOW
+                                : FAULT_NONE;
+                    }
+                } catch (NumberFormatException nfe) {
+                    /* Leave the default */
+                }
+            }
+        }
+
+        if (connection.fault != FAULT_TIMEOUT) {
+            timers.add(new Timer(now() + latency, connection));
+        }
+    }
+
+    protected void fire(Connection connection) throws IOException {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+
+        if (connection.fault == FAULT_RESET) {
+            /* Linger time 0 makes close send RST instead of FIN */
+            connection.channel.socket().setSoLinger(true, 0);
+            reset += 1;
+            close(connection);
+            return;
+        }
+
+        if (connection.out == null) {
+            String body = connection.code + "\n";
+            connection.out = ByteBuffer.wrap(("HTTP/1.1 " + connection.code + " Simulated\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Content-Length: " + body.length() + "\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n" + body).getBytes(ASCII));
+        }
+
+        if (connection.fault == FAULT_SLOW) {
+            ByteBuffer one = ByteBuffer.wrap(connection.out.array(), connection.out.position(), 1);
+            connection.channel.write(one);
+            connection.out.position(one.position());
+            if (connection.out.hasRemaining()) {
+                timers.add(new Timer(now() + connection.dripMs, connection));
+            } else {
+                answered += 1;
+                close(connection);
+            }
+            return;
+        }
+
+        write(connection);
+    }
+
+    protected void write(Connection connection) throws IOException {
+        connection.channel.write(connection.out);
+        if (connection.out.hasRemaining()) {
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+        answered += 1;
+        close(connection);
+    }
+
+    protected void close(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        open -= 1;
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            /* Nothing to do */
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FaultServer[accepted=" + accepted + ", answered=" + answered + ", reset=" + reset
+                + ", timed out=" + timedOut + ", peak open=" + peakOpen + "]";
+    }
+}
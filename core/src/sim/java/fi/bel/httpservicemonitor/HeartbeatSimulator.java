@@ -0,0 +1,170 @@
+package fi.bel.httpservicemonitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends heartbeats to a HeartbeatListener from local clients, as fast as it answers, and
+ * reports the rate, how much the listener thread allocated per heartbeat, and whether every
+ * url that reported in was seen.
+ *
+ * Options, each given as --name value:
+ *
+ * urls        number of urls that report in (1000)
+ * clients     number of client threads (8)
+ * seconds     how long to send for (10)
+ * reconnect   percentage of heartbeats sent on a new connection, as a POST with a body;
+ *             the rest reuse a kept-alive connection (10)
+ * unknown     percentage of heartbeats with a token that is not known (1)
+ */
+public class HeartbeatSimulator {
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+
+    protected final Map<String, String> options = new HashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        new HeartbeatSimulator(args).run();
+    }
+
+    protected HeartbeatSimulator(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --name value, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+    }
+
+    protected int option(String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    protected void run() throws Exception {
+        final int urlCount = option("urls", 1000);
+        int clientCount = option("clients", 8);
+        int seconds = option("seconds", 10);
+        final int reconnectPercent = option("reconnect", 10);
+        final int unknownPercent = option("unknown", 1);
+
+        final String[] tokens = new String[urlCount];
+        Map<Long, String> byId = new HashMap<>();
+        for (int i = 0; i < urlCount; i++) {
+            tokens[i] = String.format(Locale.ROOT, "%032x", i * 0x9e3779b97f4a7c15L);
+            byId.put((long) i, tokens[i]);
+        }
+
+        final HeartbeatListener listener = new HeartbeatListener(Clock.SYSTEM, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        listener.setTokens(byId);
+        listener.start();
+        long allocatedBefore = allocatedBytes(listener.thread);
+
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] clients = new Thread[clientCount];
+        for (int c = 0; c < clientCount; c++) {
+            final Random random = new Random(c);
+            clients[c] = new Thread("client-" + c) {
+                @Override
+                public void run() {
+                    Socket kept = null;
+                    byte[] answer = new byte[256];
+                    while (System.currentTimeMillis() < end) {
+                        String token = random.nextInt(100) < unknownPercent ? "unknown" : tokens[random.nextInt(urlCount)];
+                        try {
+                            if (random.nextInt(100) < reconnectPercent) {
+                                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getPort())) {
+                                    String body = "{\"status\":\"ok\"}";
+                                    exchange(socket, "POST /heartbeat/" + token + " HTTP/1.1\r\nHost: phone\r\n"
+                                            + "Content-Type: application/json\r\nContent-Length: " + body.length()
+                                            + "\r\nConnection: close\r\n\r\n" + body, answer);
+                                }
+                            } else {
+                                if (kept == null) {
+                                    kept = new Socket(InetAddress.getLoopbackAddress(), listener.getPort());
+                                }
+                                exchange(kept, "GET /heartbeat/" + token + " HTTP/1.1\r\nHost: phone\r\n\r\n", answer);
+                            }
+                            sent.incrementAndGet();
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                            kept = null;
+                        }
+                    }
+                    if (kept != null) {
+                        try {
+                            kept.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            };
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        long allocatedAfter = allocatedBytes(listener.thread);
+        Map<Long, Long> seen = listener.drain();
+        listener.close();
+
+        System.out.println(String.format(Locale.ROOT,
+                "%d heartbeats in %d s, %.0f per minute, %d failed, %d of %d urls seen, listener allocated %s per heartbeat",
+                sent.get(), seconds, sent.get() * 60.0 / seconds, failed.get(), seen.size(), urlCount,
+                allocatedBefore >= 0 && allocatedAfter >= 0
+                        ? String.format(Locale.ROOT, "%.1f bytes", (allocatedAfter - allocatedBefore) / (double) Math.max(1, sent.get()))
+                        : "unknown"));
+        System.out.println(listener);
+        System.out.print(Metrics.getInstance().dump());
+    }
+
+    /**
+     * Send a request and read its answer, which is known to end with an empty line.
+     */
+    protected static void exchange(Socket socket, String request, byte[] answer) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(ASCII));
+        out.flush();
+        InputStream in = socket.getInputStream();
+        int length = 0;
+        while (length < 4 || answer[length - 4] != '\r' || answer[length - 3] != '\n' || answer[length - 2] != '\r' || answer[length - 1] != '\n') {
+            int n = in.read(answer, length, answer.length - length);
+            if (n == -1) {
+                throw new IOException("Connection closed before the answer ended");
+            }
+            length += n;
+        }
+        if (answer[9] != '2' && answer[9] != '4') {
+            throw new IOException("Unexpected answer: " + new String(answer, 0, length, ASCII));
+        }
+    }
+
+    /**
+     * @return bytes allocated by the thread so far, or -1 if the JVM does not tell
+     */
+    protected static long allocatedBytes(Thread thread) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            /* Through the interface, which is exported where the implementation class is not */
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threads, thread.getId());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
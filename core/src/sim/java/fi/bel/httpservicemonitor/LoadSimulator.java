@@ -0,0 +1,151 @@
+package fi.bel.httpservicemonitor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs full check cycles, as the alarm receiver would, against a FaultServer that plays
+ * a fleet of endpoints, and reports how the cycles went. Everything runs in this process
+ * on the loopback interface, so no network is needed.
+ *
+ * Options, each given as --name value:
+ *
+ * endpoints   number of virtual endpoints (2000)
+ * cycles      number of cycles to run (3)
+ * latency     mean response latency in ms; actual latencies are exponentially distributed (50)
+ * timeout     percentage of endpoints that never answer (2)
+ * reset       percentage of endpoints that reset the connection (2)
+ * slow        percentage of endpoints that send their headers slowly (2)
+ * drip        delay between the bytes of a slow response in ms (200)
+ * error       percentage of endpoints that answer 503 (5)
+ * probeTimeout  connect and response timeout of a probe in ms (15000)
+ * attempts    attempts per endpoint, retried after 1 s, 2 s, ... (1)
+ * tcp         percentage of endpoints checked with a TCP connect, escalating to a request
+ *             only if that fails (0)
+ * hostLimit   most probes in flight to one host; every endpoint is on the same host here,
+ *             so this is unlimited by default (0)
+ * seed        seed of the fault assignment (1)
+ *
+ * The wake lock time is the time the app would hold its wake lock: from starting the
+ * probes until the alert evaluation is done.
+ */
+public class LoadSimulator {
+    protected final Map<String, String> options = new HashMap<>();
+
+    protected LoadSimulator(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --name value, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+    }
+
+    protected int option(String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadSimulator(args).run();
+        System.exit(0);
+    }
+
+    protected void run() throws Exception {
+        int endpointCount = option("endpoints", 2000);
+        int cycles = option("cycles", 3);
+        int latency = option("latency", 50);
+        int timeoutPercent = option("timeout", 2);
+        int resetPercent = option("reset", 2);
+        int slowPercent = option("slow", 2);
+        int drip = option("drip", 200);
+        int errorPercent = option("error", 5);
+        int probeTimeout = option("probeTimeout", 15000);
+        int attempts = option("attempts", 1);
+        int hostLimit = option("hostLimit", 0);
+        int tcpPercent = option("tcp", 0);
+        Random random = new Random(option("seed", 1));
+
+        warnAboutFileDescriptors(endpointCount);
+
+        FaultServer server = new FaultServer();
+        server.start();
+
+        List<Endpoint> endpoints = new ArrayList<>(endpointCount);
+        for (int i = 0; i < endpointCount; i++) {
+            long delay = Math.round(-Math.log(1 - random.nextDouble()) * latency);
+            int roll = random.nextInt(100);
+            String query = "id=" + i + "&latency=" + delay;
+            if ((roll -= timeoutPercent) < 0) {
+                query += "&fault=timeout";
+            } else if ((roll -= resetPercent) < 0) {
+                query += "&fault=reset";
+            } else if ((roll -= slowPercent) < 0) {
+                query += "&fault=slow&drip=" + drip;
+            } else if (roll - errorPercent < 0) {
+                query += "&code=503";
+            }
+            int probeType = tcpPercent > 0 && random.nextInt(100) < tcpPercent ? ProbeEngine.PROBE_TCP : ProbeEngine.PROBE_HTTP;
+            endpoints.add(new Endpoint(i, server.url("/", query), probeType, false, null));
+        }
+
+        RetryPolicy retryPolicy = new RetryPolicy(attempts, 1000, 2.0, 60000, 0.2, 1000 * 60 * 4);
+        AlertEvaluator evaluator = new AlertEvaluator(Clock.SYSTEM, 1000 * 60 * 55);
+        MemoryStore store = new MemoryStore(evaluator);
+        ProbeDispatcher dispatcher = new ProbeDispatcher(ProbeEngine.getInstance(), Clock.SYSTEM,
+                hostLimit > 0 ? hostLimit : Integer.MAX_VALUE);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.out.println(String.format(Locale.ROOT, "%d endpoints, %d%% timeout, %d%% reset, %d%% slow, %d%% error, %d%% tcp, mean latency %d ms, %s",
+                endpointCount, timeoutPercent, resetPercent, slowPercent, errorPercent, tcpPercent, latency, retryPolicy));
+        for (int cycle = 1; cycle <= cycles; cycle++) {
+            threads.resetPeakThreadCount();
+            long lockStart = Clock.SYSTEM.elapsedTime();
+
+            CheckCycle checkCycle = new CheckCycle(dispatcher, endpoints, retryPolicy, probeTimeout, Clock.SYSTEM, store);
+            checkCycle.start();
+            checkCycle.await();
+            long cycleMs = Clock.SYSTEM.elapsedTime() - lockStart;
+
+            AlertEvaluator.Alert alert = evaluator.evaluate(store);
+            long lockMs = Clock.SYSTEM.elapsedTime() - lockStart;
+
+            System.out.println(String.format(Locale.ROOT,
+                    "cycle %d: wall %d ms, wake lock %d ms, %.1f results/s, peak threads %d, suspect %d, failing %d, alert %s",
+                    cycle, cycleMs, lockMs, endpointCount * 1000.0 / Math.max(1, cycleMs), threads.getPeakThreadCount(),
+                    alert.suspectCount, alert.failureCount, alert.level));
+        }
+
+        System.out.println(server);
+        System.out.println(dispatcher);
+        System.out.println(ProbeEngine.getInstance().describeSavings());
+        System.out.print(Metrics.getInstance().dump());
+        server.stop();
+    }
+
+    /**
+     * Each endpoint needs a socket on both sides of the loopback connection at once.
+     */
+    protected static void warnAboutFileDescriptors(int endpointCount) {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        try {
+            Method max = os.getClass().getMethod("getMaxFileDescriptorCount");
+            max.setAccessible(true);
+            long limit = (Long) max.invoke(os);
+            if (limit < endpointCount * 2L + 100) {
+                System.out.println("Warning: file descriptor limit " + limit + " is too low for " + endpointCount
+                        + " endpoints; raise it with ulimit -n " + (endpointCount * 2 + 100));
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            /* Not a Unix JVM; nothing to check */
+        }
+    }
+}
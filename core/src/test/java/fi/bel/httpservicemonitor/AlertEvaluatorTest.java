@@ -0,0 +1,177 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AlertEvaluatorTest {
+    protected static final long REACT_MS = 1000 * 60 * 55;
+    protected static final long STEP_MS = 1000 * 60 * 10;
+
+    protected static class ManualClock implements Clock {
+        protected long now = 1000000;
+
+        @Override
+        public long wallTime() {
+            return now;
+        }
+
+        @Override
+        public long elapsedTime() {
+            return now;
+        }
+    }
+
+    protected ManualClock clock;
+    protected AlertEvaluator evaluator;
+    protected MemoryStore store;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+        evaluator = new AlertEvaluator(clock, REACT_MS);
+        store = new MemoryStore(evaluator);
+    }
+
+    protected void record(long id, boolean ok) {
+        clock.now += STEP_MS;
+        evaluator.record(id, ok, clock.now);
+    }
+
+    @Test
+    public void oneFailureIsOnlySuspect() {
+        record(1, false);
+        assertTrue(evaluator.drainTransitions().isEmpty());
+        AlertEvaluator.Alert alert = evaluator.evaluate(store);
+        assertEquals(AlertEvaluator.Level.NONE, alert.level);
+        assertEquals(1, alert.suspectCount);
+        assertEquals(0, alert.failureCount);
+
+        record(1, true);
+        alert = evaluator.evaluate(store);
+        assertEquals(0, alert.suspectCount);
+    }
+
+    @Test
+    public void failuresInARowMakeAWeakAlarm() {
+        long lastGood = clock.now;
+        record(1, true);
+        lastGood += STEP_MS;
+        record(1, false);
+        record(1, false);
+        List<AlertEvaluator.Transition> transitions = evaluator.drainTransitions();
+        assertEquals(1, transitions.size());
+        assertEquals(AlertEvaluator.STATE_FAILING, transitions.get(0).state);
+
+        AlertEvaluator.Alert alert = evaluator.evaluate(store);
+        assertEquals(AlertEvaluator.Level.WEAK, alert.level);
+        assertEquals(1, alert.failureCount);
+        assertEquals(lastGood, alert.oldestFailure);
+        assertFalse(alert.escalated);
+    }
+
+    @Test
+    public void failingBecomesStaleAfterTheReactInterval() {
+        record(1, true);
+        long lastGood = clock.now;
+        record(1, false);
+        record(1, false);
+        evaluator.evaluate(store);
+
+        clock.now = lastGood + REACT_MS - 1;
+        assertEquals(AlertEvaluator.Level.WEAK, evaluator.evaluate(store).level);
+
+        clock.now = lastGood + REACT_MS;
+        AlertEvaluator.Alert alert = evaluator.evaluate(store);
+        assertEquals(AlertEvaluator.Level.STRONG, alert.level);
+        assertEquals(1, alert.oldFailureCount);
+        assertTrue(alert.escalated);
+        assertEquals(AlertEvaluator.STATE_STALE, store.getAlertState(1));
+
+        /* Only the evaluation that saw it happen escalates */
+        alert = evaluator.evaluate(store);
+        assertEquals(AlertEvaluator.Level.STRONG, alert.level);
+        assertFalse(alert.escalated);
+    }
+
+    @Test
+    public void recoveryTakesSuccessesInARow() {
+        record(1, false);
+        record(1, false);
+        evaluator.drainTransitions();
+
+        record(1, true);
+        record(1, false);
+        record(1, true);
+        assertTrue(evaluator.drainTransitions().isEmpty());
+        assertEquals(1, evaluator.evaluate(store).failureCount);
+
+        record(1, true);
+        List<AlertEvaluator.Transition> transitions = evaluator.drainTransitions();
+        assertEquals(1, transitions.size());
+        assertEquals(AlertEvaluator.STATE_OK, transitions.get(0).state);
+        assertEquals(AlertEvaluator.Level.NONE, evaluator.evaluate(store).level);
+    }
+
+    @Test
+    public void flappingUrlDoesNotSoundTheStrongAlarm() {
+        record(1, false);
+        record(1, true);
+        record(1, false);
+        record(1, true);
+        assertEquals(1, evaluator.evaluate(store).flappingCount);
+
+        long lastGood = clock.now;
+        record(1, false);
+        record(1, false);
+        clock.now = lastGood + REACT_MS;
+        AlertEvaluator.Alert alert = evaluator.evaluate(store);
+        assertEquals(1, alert.oldFailureCount);
+        assertEquals(1, alert.flappingCount);
+        assertEquals(AlertEvaluator.Level.WEAK, alert.level);
+        assertFalse(alert.escalated);
+    }
+
+    @Test
+    public void loadedFailureBecomesStaleOnTime() {
+        long lastOk = clock.now - REACT_MS + STEP_MS;
+        evaluator.load(1, AlertEvaluator.STATE_FAILING, lastOk, false);
+        assertEquals(AlertEvaluator.Level.WEAK, evaluator.evaluate(store).level);
+
+        clock.now = lastOk + REACT_MS;
+        assertEquals(AlertEvaluator.Level.STRONG, evaluator.evaluate(store).level);
+    }
+
+    @Test
+    public void removedUrlIsForgotten() {
+        record(1, false);
+        record(1, false);
+        record(2, false);
+        record(2, false);
+        assertEquals(2, evaluator.evaluate(store).failureCount);
+
+        evaluator.remove(1);
+        AlertEvaluator.Alert alert = evaluator.evaluate(store);
+        assertEquals(1, alert.failureCount);
+    }
+
+    @Test
+    public void slowUrlsAreCounted() {
+        evaluator.load(1, AlertEvaluator.STATE_OK, clock.now, true);
+        evaluator.setSlow(2, true);
+        evaluator.setSlow(3, true);
+        record(2, false);
+        assertEquals(3, evaluator.evaluate(store).slowCount);
+
+        evaluator.setSlow(3, false);
+        evaluator.remove(1);
+        AlertEvaluator.Alert alert = evaluator.evaluate(store);
+        assertEquals(1, alert.slowCount);
+        assertEquals(AlertEvaluator.Level.NONE, alert.level);
+    }
+}
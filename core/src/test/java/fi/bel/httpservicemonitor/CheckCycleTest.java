@@ -0,0 +1,337 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cycles against local servers, on a dispatcher and engine of their own.
+ */
+public class CheckCycleTest {
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+    protected static final int TIMEOUT_MS = 1000;
+    protected static final RetryPolicy NO_RETRIES = new RetryPolicy(1, 0, 1, 0, 0, 0);
+    protected static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+    protected static final String UNAVAILABLE = "HTTP/1.1 503 Unavailable\r\nContent-Length: 0\r\n\r\n";
+
+    protected static ProbeDispatcher dispatcher;
+
+    protected static class ManualClock implements Clock {
+        protected long now = 1000000;
+
+        @Override
+        public long wallTime() {
+            return now;
+        }
+
+        @Override
+        public long elapsedTime() {
+            return now;
+        }
+    }
+
+    /**
+     * Keeps what the cycle records.
+     */
+    protected static class ResultStore implements MonitorStore {
+        protected final List<CheckResult> results = Collections.synchronizedList(new ArrayList<CheckResult>());
+
+        @Override
+        public void record(List<CheckResult> batch, long now) {
+            results.addAll(batch);
+        }
+
+        @Override
+        public void saveAlertStates(List<AlertEvaluator.Transition> transitions) {
+        }
+
+        protected CheckResult result(long id) {
+            synchronized (results) {
+                for (CheckResult result : results) {
+                    if (result.endpoint.id == id) {
+                        return result;
+                    }
+                }
+            }
+            throw new AssertionError("No result for " + id);
+        }
+    }
+
+    protected final List<ServerSocket> servers = new ArrayList<>();
+    /** Requests answered by the servers of the test, not counting bare connections */
+    protected final AtomicInteger requests = new AtomicInteger();
+    protected final ResultStore store = new ResultStore();
+
+    @BeforeClass
+    public static void startDispatcher() throws Exception {
+        dispatcher = new ProbeDispatcher(new ProbeEngine(), Clock.SYSTEM, ProbeDispatcher.DEFAULT_HOST_LIMIT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (ServerSocket server : servers) {
+            server.close();
+        }
+    }
+
+    /**
+     * @param response what to answer each request with, or null to never answer
+     * @return address of the server
+     */
+    protected String serve(final String response) throws IOException {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        servers.add(server);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                List<Socket> held = new ArrayList<>();
+                while (!server.isClosed()) {
+                    try {
+                        Socket accepted = server.accept();
+                        if (response == null) {
+                            held.add(accepted);
+                            continue;
+                        }
+                        try (Socket socket = accepted) {
+                            InputStream in = socket.getInputStream();
+                            int matched = 0;
+                            while (matched < 4) {
+                                int c = in.read();
+                                if (c == -1) {
+                                    break;
+                                }
+                                matched = c == "\r\n\r\n".charAt(matched) ? matched + 1 : c == '\r' ? 1 : 0;
+                            }
+                            if (matched < 4) {
+                                /* Connected without making a request */
+                                continue;
+                            }
+                            requests.incrementAndGet();
+                            socket.getOutputStream().write(response.getBytes(ASCII));
+                        }
+                    } catch (IOException e) {
+                        /* The client went away, or the server was closed */
+                    }
+                }
+                for (Socket socket : held) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return "http://127.0.0.1:" + server.getLocalPort() + "/";
+    }
+
+    protected CheckCycle cycle(RetryPolicy retryPolicy, Endpoint... endpoints) {
+        return new CheckCycle(dispatcher, Arrays.asList(endpoints), retryPolicy, TIMEOUT_MS, Clock.SYSTEM, store);
+    }
+
+    /**
+     * Abort the cycle once the servers have answered this many requests.
+     */
+    protected void abortAfter(final CheckCycle cycle, final int answered) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                while (requests.get() < answered) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                cycle.abort("test");
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Test
+    public void everyEndpointGetsItsResult() throws Exception {
+        CheckCycle cycle = cycle(NO_RETRIES,
+                new Endpoint(1, serve(OK), ProbeEngine.PROBE_HTTP, false, null),
+                new Endpoint(2, serve(UNAVAILABLE), ProbeEngine.PROBE_HTTP, false, null));
+        cycle.start();
+        cycle.await();
+
+        assertFalse(cycle.isAborted());
+        assertEquals(2, store.results.size());
+        assertEquals(200, store.result(1).result);
+        assertEquals(503, store.result(2).result);
+        assertTrue(cycle.getUnchecked().isEmpty());
+    }
+
+    @Test
+    public void failureIsRetried() throws Exception {
+        CheckCycle cycle = cycle(new RetryPolicy(3, 10, 1, 10, 0, 60000), new Endpoint(1, serve(UNAVAILABLE), ProbeEngine.PROBE_HTTP, false, null));
+        cycle.start();
+        cycle.await();
+
+        assertEquals(503, store.result(1).result);
+        assertEquals(3, store.result(1).attempts);
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void abortReturnsWithTheUncheckedEndpoints() throws Exception {
+        Endpoint silent = new Endpoint(2, serve(null), ProbeEngine.PROBE_HTTP, false, null);
+        CheckCycle cycle = cycle(NO_RETRIES, new Endpoint(1, serve(OK), ProbeEngine.PROBE_HTTP, false, null), silent);
+        abortAfter(cycle, 1);
+        long start = System.nanoTime();
+        cycle.start();
+        cycle.await();
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(cycle.isAborted());
+        assertTrue("took " + elapsedMs + " ms", elapsedMs < TIMEOUT_MS);
+        assertEquals(200, store.result(1).result);
+        assertEquals(Collections.singletonList(silent), cycle.getUnchecked());
+    }
+
+    @Test
+    public void abortCancelsThePendingRetry() throws Exception {
+        Endpoint failing = new Endpoint(1, serve(UNAVAILABLE), ProbeEngine.PROBE_HTTP, false, null);
+        CheckCycle cycle = cycle(new RetryPolicy(5, 500, 1, 500, 0, 60000), failing);
+        abortAfter(cycle, 1);
+        cycle.start();
+        cycle.await();
+
+        /* Give the retry time to happen, if it were going to */
+        Thread.sleep(1000);
+        assertEquals(1, requests.get());
+        assertTrue(store.results.isEmpty());
+        assertEquals(Collections.singletonList(failing), cycle.getUnchecked());
+    }
+
+    @Test
+    public void abortLeavesOtherCyclesAlone() throws Exception {
+        CheckCycle aborted = cycle(NO_RETRIES, new Endpoint(1, serve(null), ProbeEngine.PROBE_HTTP, false, null));
+        CheckCycle other = cycle(NO_RETRIES, new Endpoint(2, serve(null), ProbeEngine.PROBE_HTTP, false, null));
+        aborted.start();
+        other.start();
+        aborted.abort("test");
+        aborted.await();
+        other.await();
+
+        /* The probe of the other cycle ran until its own timeout */
+        assertTrue(store.result(2).result instanceof SocketTimeoutException);
+    }
+
+    @Test
+    public void endpointsWithTheSameAddressShareOneProbe() throws Exception {
+        String address = serve(OK);
+        CheckCycle cycle = cycle(NO_RETRIES,
+                new Endpoint(1, address, ProbeEngine.PROBE_HTTP, false, null),
+                new Endpoint(2, address, ProbeEngine.PROBE_HTTP, false, null),
+                new Endpoint(3, address, ProbeEngine.PROBE_HTTP, true, null));
+        cycle.start();
+        cycle.await();
+
+        assertEquals(2, requests.get());
+        assertEquals(3, store.results.size());
+        assertEquals(200, store.result(1).result);
+        assertEquals(200, store.result(2).result);
+        assertEquals(200, store.result(3).result);
+    }
+
+    @Test
+    public void addedEndpointsJoinTheRunningCycle() throws Exception {
+        Endpoint failing = new Endpoint(1, serve(UNAVAILABLE), ProbeEngine.PROBE_HTTP, false, null);
+        CheckCycle cycle = cycle(new RetryPolicy(2, 300, 1, 300, 0, 60000), failing);
+        cycle.start();
+        String address = serve(OK);
+        assertTrue(cycle.add(Arrays.asList(
+                new Endpoint(2, address, ProbeEngine.PROBE_HTTP, false, null),
+                new Endpoint(3, address, ProbeEngine.PROBE_HTTP, false, null),
+                failing)));
+        cycle.await();
+
+        /* The failing endpoint was already in the cycle, so it is not probed twice */
+        assertEquals(3, cycle.size());
+        assertEquals(3, store.results.size());
+        assertEquals(2, store.result(1).attempts);
+        assertEquals(200, store.result(2).result);
+        assertEquals(200, store.result(3).result);
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void nothingIsAddedToAFinishedCycle() throws Exception {
+        CheckCycle cycle = cycle(NO_RETRIES, new Endpoint(1, serve(OK), ProbeEngine.PROBE_HTTP, false, null));
+        cycle.start();
+        cycle.await();
+        assertFalse(cycle.add(Collections.singletonList(new Endpoint(2, serve(OK), ProbeEngine.PROBE_HTTP, false, null))));
+        assertEquals(1, cycle.size());
+
+        CheckCycle aborted = cycle(NO_RETRIES, new Endpoint(1, serve(null), ProbeEngine.PROBE_HTTP, false, null));
+        aborted.start();
+        aborted.abort("test");
+        assertFalse(aborted.add(Collections.singletonList(new Endpoint(2, serve(OK), ProbeEngine.PROBE_HTTP, false, null))));
+        aborted.await();
+        assertEquals(1, aborted.size());
+    }
+
+    @Test
+    public void reachableConnectProbeMakesNoRequest() throws Exception {
+        CheckCycle cycle = cycle(NO_RETRIES, new Endpoint(1, serve(OK), ProbeEngine.PROBE_TCP, false, null));
+        cycle.start();
+        cycle.await();
+
+        assertTrue(store.result(1).result instanceof ProbeEngine.Reachable);
+        assertEquals(ProbeEngine.PROBE_TCP, store.result(1).probeType);
+        assertEquals(0, requests.get());
+    }
+
+    @Test
+    public void failedConnectProbeEscalatesToARequest() throws Exception {
+        ServerSocket closed = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        closed.close();
+        String address = "http://127.0.0.1:" + closed.getLocalPort() + "/";
+        CheckCycle cycle = cycle(new RetryPolicy(2, 10, 1, 10, 0, 60000), new Endpoint(1, address, ProbeEngine.PROBE_TCP, false, null));
+        cycle.start();
+        cycle.await();
+
+        /* The connect probe is not an attempt of the request; the request gets its retries */
+        assertTrue(store.result(1).result instanceof IOException);
+        assertEquals(ProbeEngine.PROBE_HTTP, store.result(1).probeType);
+        assertEquals(2, store.result(1).attempts);
+    }
+
+    @Test
+    public void certificateExpiringSoonFails() throws Exception {
+        ManualClock clock = new ManualClock();
+        CheckCycle cycle = new CheckCycle(dispatcher, Collections.singletonList(
+                new Endpoint(1, "https://localhost/", ProbeEngine.PROBE_TLS, false, null)), NO_RETRIES, TIMEOUT_MS, clock, store);
+        CheckCycle.Task task = cycle.tasks.get(0);
+
+        long expiry = clock.now + CheckCycle.CERTIFICATE_WARNING_MS;
+        assertTrue(task.checkCertificate(new ProbeEngine.Reachable(expiry)) instanceof ProbeEngine.Reachable);
+        Object result = task.checkCertificate(new ProbeEngine.Reachable(expiry - 1));
+        assertTrue(result instanceof CertificateExpiryException);
+        assertEquals(expiry - 1, ((CertificateExpiryException) result).getExpiry());
+        /* No handshake, no certificate */
+        assertTrue(task.checkCertificate(new ProbeEngine.Reachable(0)) instanceof ProbeEngine.Reachable);
+    }
+}
@@ -0,0 +1,55 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CheckSchedulerTest {
+    protected static final long NOW = 1000000;
+    protected static final long INTERVAL_MS = 60000;
+
+    @Test
+    public void nextCheckKeepsThePhase() {
+        assertEquals(NOW + 5, CheckScheduler.nextCheck(NOW + 5, NOW, INTERVAL_MS));
+        assertEquals(NOW + INTERVAL_MS, CheckScheduler.nextCheck(NOW, NOW, INTERVAL_MS));
+        assertEquals(NOW + 5000, CheckScheduler.nextCheck(NOW + 5000 - 3 * INTERVAL_MS, NOW, INTERVAL_MS));
+        assertEquals(NOW + INTERVAL_MS - 1, CheckScheduler.nextCheck(NOW - 1, NOW, INTERVAL_MS));
+    }
+
+    @Test
+    public void placedChecksAreSpreadOverTheInterval() {
+        CheckScheduler scheduler = new CheckScheduler(NOW, INTERVAL_MS);
+        Set<Long> times = new HashSet<>();
+        for (int i = 0; i < CheckScheduler.SLOTS; i++) {
+            long time = scheduler.place();
+            assertTrue(time >= NOW && time < NOW + INTERVAL_MS);
+            times.add(time);
+        }
+        assertEquals(CheckScheduler.SLOTS, times.size());
+    }
+
+    @Test
+    public void placementAvoidsExistingChecks() {
+        long slotMs = INTERVAL_MS / CheckScheduler.SLOTS;
+        CheckScheduler scheduler = new CheckScheduler(NOW, INTERVAL_MS);
+        scheduler.add(NOW + 1, INTERVAL_MS);
+        assertEquals(NOW + slotMs + slotMs / 2, scheduler.place());
+    }
+
+    @Test
+    public void shorterIntervalOccupiesSeveralSlots() {
+        CheckScheduler scheduler = new CheckScheduler(NOW, INTERVAL_MS);
+        scheduler.add(NOW + 1, INTERVAL_MS / 2);
+        assertEquals(1, scheduler.load[0]);
+        assertEquals(1, scheduler.load[CheckScheduler.SLOTS / 2]);
+        int total = 0;
+        for (int load : scheduler.load) {
+            total += load;
+        }
+        assertEquals(2, total);
+    }
+}
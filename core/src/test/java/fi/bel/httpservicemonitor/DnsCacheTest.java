@@ -0,0 +1,60 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DnsCacheTest {
+    protected static final long NOW = 1000000;
+
+    @Test
+    public void addressExpiresAfterItsTtl() throws Exception {
+        DnsCache cache = new DnsCache();
+        InetAddress address = InetAddress.getByAddress("example.com", new byte[] { 10, 0, 0, 1 });
+        cache.putAddress("example.com", address, NOW);
+        assertSame(address, cache.get("example.com", NOW + DnsCache.POSITIVE_TTL_MS - 1).address);
+        assertNull(cache.get("example.com", NOW + DnsCache.POSITIVE_TTL_MS));
+        /* The expired entry is gone for good */
+        assertNull(cache.get("example.com", NOW));
+    }
+
+    @Test
+    public void failureHasTheShorterTtl() {
+        DnsCache cache = new DnsCache();
+        UnknownHostException failure = new UnknownHostException("missing.example.com");
+        cache.putFailure("missing.example.com", failure, NOW);
+        DnsCache.Entry entry = cache.get("missing.example.com", NOW + DnsCache.NEGATIVE_TTL_MS - 1);
+        assertSame(failure, entry.failure);
+        assertNull(entry.address);
+        assertNull(cache.get("missing.example.com", NOW + DnsCache.NEGATIVE_TTL_MS));
+    }
+
+    @Test
+    public void invalidateForgetsTheHost() throws Exception {
+        DnsCache cache = new DnsCache();
+        cache.putAddress("example.com", InetAddress.getByAddress("example.com", new byte[] { 10, 0, 0, 1 }), NOW);
+        cache.invalidate("example.com");
+        assertNull(cache.get("example.com", NOW));
+    }
+
+    @Test
+    public void fullCacheDropsExpiredEntriesFirst() throws Exception {
+        DnsCache cache = new DnsCache();
+        InetAddress address = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+        cache.putAddress("fresh.example.com", address, NOW);
+        for (int i = 1; i < DnsCache.MAX_ENTRIES; i++) {
+            cache.putFailure("host" + i + ".example.com", new UnknownHostException(), NOW);
+        }
+        assertEquals(DnsCache.MAX_ENTRIES, cache.entries.size());
+
+        long later = NOW + DnsCache.NEGATIVE_TTL_MS;
+        cache.putAddress("new.example.com", address, later);
+        assertEquals(2, cache.entries.size());
+        assertSame(address, cache.get("fresh.example.com", later).address);
+    }
+}
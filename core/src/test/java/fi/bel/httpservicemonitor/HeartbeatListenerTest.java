@@ -0,0 +1,211 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatListenerTest {
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+    protected static final int TIMEOUT_MS = 5000;
+
+    protected static class ManualClock implements Clock {
+        protected long now = 1000000;
+
+        @Override
+        public long wallTime() {
+            return now;
+        }
+
+        @Override
+        public long elapsedTime() {
+            return now;
+        }
+    }
+
+    protected ManualClock clock;
+    protected HeartbeatListener listener;
+    protected Socket socket;
+
+    @Before
+    public void setUp() throws IOException {
+        clock = new ManualClock();
+        listener = new HeartbeatListener(clock, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Map<Long, String> tokens = new HashMap<>();
+        tokens.put(1L, "abc");
+        tokens.put(2L, "def");
+        listener.setTokens(tokens);
+        listener.start();
+        socket = new Socket(InetAddress.getLoopbackAddress(), listener.getPort());
+        socket.setSoTimeout(TIMEOUT_MS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        listener.close();
+    }
+
+    protected void send(String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(ASCII));
+        out.flush();
+    }
+
+    /**
+     * @return head of the next response, which has no body
+     */
+    protected String receive() throws IOException {
+        InputStream in = socket.getInputStream();
+        StringBuilder head = new StringBuilder();
+        while (head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n")) {
+            int c = in.read();
+            if (c == -1) {
+                throw new IOException("Connection closed after " + head);
+            }
+            head.append((char) c);
+        }
+        return head.toString();
+    }
+
+    protected void assertClosed() throws IOException {
+        assertEquals(-1, socket.getInputStream().read());
+    }
+
+    @Test
+    public void knownTokenIsRecorded() throws IOException {
+        send("GET /heartbeat/abc HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 204 "));
+        assertEquals(clock.now, listener.lastSeen(1));
+        assertEquals(0, listener.lastSeen(2));
+
+        assertEquals(Collections.singletonMap(1L, clock.now), listener.drain());
+        assertTrue(listener.drain().isEmpty());
+    }
+
+    @Test
+    public void unknownTokenIsNotFound() throws IOException {
+        send("GET /heartbeat/abcd HTTP/1.1\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 404 "));
+        send("GET /heartbeat/ab HTTP/1.1\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 404 "));
+        send("GET /other/abc HTTP/1.1\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 404 "));
+        assertTrue(listener.drain().isEmpty());
+    }
+
+    @Test
+    public void otherMethodsAreRejected() throws IOException {
+        send("PUT /heartbeat/abc HTTP/1.1\r\nContent-Length: 0\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 405 "));
+        assertEquals(0, listener.lastSeen(1));
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnswered() throws IOException {
+        /* The body and the query are skipped, and header names are not case sensitive */
+        send("POST /heartbeat/abc?status=ok HTTP/1.1\r\ncontent-LENGTH: 5\r\n\r\nhello"
+                + "GET /heartbeat/def HTTP/1.1\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 204 "));
+        assertTrue(receive().startsWith("HTTP/1.1 204 "));
+        assertEquals(clock.now, listener.lastSeen(1));
+        assertEquals(clock.now, listener.lastSeen(2));
+    }
+
+    @Test
+    public void bodySplitOverReadsIsSkipped() throws Exception {
+        send("POST /heartbeat/abc HTTP/1.1\r\nContent-Length: 10\r\n\r\nhello");
+        assertTrue(receive().startsWith("HTTP/1.1 204 "));
+        Thread.sleep(100);
+        send("world");
+        send("GET /heartbeat/def HTTP/1.1\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 204 "));
+        assertEquals(clock.now, listener.lastSeen(2));
+    }
+
+    @Test
+    public void oldProtocolClosesTheConnection() throws IOException {
+        send("GET /heartbeat/abc HTTP/1.0\r\n\r\n");
+        String head = receive();
+        assertTrue(head.startsWith("HTTP/1.1 204 "));
+        assertTrue(head.contains("Connection: close\r\n"));
+        assertClosed();
+    }
+
+    @Test
+    public void connectionCloseIsHonoured() throws IOException {
+        send("GET /heartbeat/abc HTTP/1.1\r\nConnection: Close\r\n\r\n");
+        assertTrue(receive().contains("Connection: close\r\n"));
+        assertClosed();
+    }
+
+    @Test
+    public void chunkedBodyIsRejected() throws IOException {
+        send("POST /heartbeat/abc HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 400 "));
+        assertClosed();
+        assertEquals(0, listener.lastSeen(1));
+    }
+
+    @Test
+    public void largeBodyIsRejected() throws IOException {
+        send("POST /heartbeat/abc HTTP/1.1\r\nContent-Length: " + (HeartbeatListener.MAX_BODY_BYTES + 1) + "\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 413 "));
+        assertClosed();
+    }
+
+    @Test
+    public void overlongHeaderIsRejected() throws IOException {
+        StringBuilder request = new StringBuilder("GET /heartbeat/abc HTTP/1.1\r\n");
+        while (request.length() < HeartbeatListener.MAX_HEADER_BYTES) {
+            request.append("X-Padding: 0123456789\r\n");
+        }
+        /* Exactly a buffer full, so that nothing is left unread when the listener closes */
+        send(request.substring(0, HeartbeatListener.MAX_HEADER_BYTES));
+        assertTrue(receive().startsWith("HTTP/1.1 400 "));
+        assertClosed();
+    }
+
+    @Test
+    public void urlKeepsItsTimeWhenTheTokensChange() throws IOException {
+        send("GET /heartbeat/abc HTTP/1.1\r\n\r\n");
+        receive();
+        long seen = clock.now;
+        clock.now += 1000;
+
+        listener.setTokens(Collections.singletonMap(1L, "xyz"));
+        assertEquals(seen, listener.lastSeen(1));
+        assertEquals(Collections.singletonMap(1L, seen), listener.drain());
+
+        send("GET /heartbeat/abc HTTP/1.1\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 404 "));
+        send("GET /heartbeat/xyz HTTP/1.1\r\n\r\n");
+        assertTrue(receive().startsWith("HTTP/1.1 204 "));
+        assertEquals(clock.now, listener.lastSeen(1));
+    }
+
+    @Test
+    public void portIsFreeOnceClosed() throws IOException {
+        send("GET /heartbeat/abc HTTP/1.1\r\n\r\n");
+        receive();
+        int port = listener.getPort();
+        listener.close();
+
+        listener = new HeartbeatListener(clock, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        listener.start();
+        assertEquals(port, listener.getPort());
+    }
+}
@@ -0,0 +1,89 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void varintsRoundTrip() {
+        long[] values = { 0, 1, 127, 128, 300, 16383, 16384, 1L << 35, Long.MAX_VALUE, -1 };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long value : values) {
+            LatencyHistogram.writeVarint(out, value);
+        }
+        byte[] data = out.toByteArray();
+        int[] pos = { 0 };
+        for (long value : values) {
+            assertEquals(value, LatencyHistogram.readVarint(data, pos));
+        }
+        assertEquals(data.length, pos[0]);
+    }
+
+    @Test
+    public void varintLength() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LatencyHistogram.writeVarint(out, 127);
+        assertArrayEquals(new byte[] { 0x7f }, out.toByteArray());
+        out.reset();
+        LatencyHistogram.writeVarint(out, 128);
+        assertArrayEquals(new byte[] { (byte) 0x80, 0x01 }, out.toByteArray());
+    }
+
+    @Test
+    public void serializedFormRoundTrips() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(i * 7);
+        }
+        histogram.record(1L << 40);
+
+        LatencyHistogram copy = LatencyHistogram.fromBytes(histogram.toBytes());
+        assertEquals(histogram.getCount(), copy.getCount());
+        assertEquals(histogram.getMin(), copy.getMin());
+        assertEquals(histogram.getMax(), copy.getMax());
+        assertArrayEquals(histogram.counts, copy.counts);
+        assertEquals(histogram.percentile(0.95), copy.percentile(0.95));
+    }
+
+    @Test
+    public void emptyHistogramRoundTrips() {
+        LatencyHistogram copy = LatencyHistogram.fromBytes(new LatencyHistogram().toBytes());
+        assertEquals(0, copy.getCount());
+        assertEquals(0, copy.getMax());
+        assertEquals(0, LatencyHistogram.fromBytes(null).getCount());
+    }
+
+    @Test
+    public void percentileIsClampedToRecordedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(42);
+        assertEquals(42, histogram.percentile(0.5));
+        assertEquals(42, histogram.percentile(0.99));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        long p50 = histogram.percentile(0.5);
+        long p95 = histogram.percentile(0.95);
+        assertTrue(p50 <= p95);
+        assertTrue("p50 " + p50, p50 >= 45 && p50 <= 60);
+        assertTrue("p95 " + p95, p95 >= 90 && p95 <= 100);
+    }
+
+    @Test
+    public void decayKeepsNonEmptyBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1000);
+        }
+        histogram.decay();
+        assertEquals(6, histogram.getCount());
+        assertEquals(1, histogram.counts[LatencyHistogram.bucket(10)]);
+    }
+}
@@ -0,0 +1,88 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PatternMatcherTest {
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+
+    protected static PatternMatcher matcher(String... patterns) {
+        List<byte[]> bytes = new ArrayList<>();
+        for (String pattern : patterns) {
+            bytes.add(pattern.getBytes(ASCII));
+        }
+        return new PatternMatcher(bytes);
+    }
+
+    protected static long find(PatternMatcher matcher, String... pieces) {
+        PatternMatcher.State state = matcher.newState();
+        for (String piece : pieces) {
+            byte[] data = piece.getBytes(ASCII);
+            matcher.feed(state, data, 0, data.length);
+        }
+        return state.getFound();
+    }
+
+    @Test
+    public void overlappingPatternsAreAllFound() {
+        PatternMatcher matcher = matcher("he", "she", "his", "hers");
+        assertEquals(0b1011, find(matcher, "ushers"));
+        assertEquals(0b0100, find(matcher, "this"));
+        assertEquals(0, find(matcher, "hhsi"));
+    }
+
+    @Test
+    public void partialMatchFallsBackToItsLongestSuffix() {
+        /* After "aa" fails on the second 'a', the match must continue from "a" */
+        assertEquals(1, find(matcher("aab"), "aaab"));
+        assertEquals(1, find(matcher("abac"), "ababac"));
+        assertEquals(0, find(matcher("abac"), "ababc"));
+    }
+
+    @Test
+    public void patternInsideAnotherIsFoundThroughTheFailureChain() {
+        PatternMatcher matcher = matcher("abcd", "bc");
+        assertEquals(0b10, find(matcher, "abcx"));
+        assertEquals(0b11, find(matcher, "abcd"));
+    }
+
+    @Test
+    public void matchContinuesAcrossFeeds() {
+        PatternMatcher matcher = matcher("status: ok");
+        assertEquals(1, find(matcher, "<html>sta", "tus", ": o", "k</html>"));
+        assertEquals(0, find(matcher, "<html>sta", "tus: ", "up</html>"));
+    }
+
+    @Test
+    public void feedHonoursOffsetAndLength() {
+        PatternMatcher matcher = matcher("abc");
+        PatternMatcher.State state = matcher.newState();
+        byte[] data = "xxabcxx".getBytes(ASCII);
+        matcher.feed(state, data, 0, 4);
+        assertEquals(0, state.getFound());
+        matcher.feed(state, data, 4, 3);
+        assertEquals(1, state.getFound());
+    }
+
+    @Test
+    public void lastPatternUsesTheTopBit() {
+        String[] patterns = new String[PatternMatcher.MAX_PATTERNS];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = "p" + i + ";";
+        }
+        PatternMatcher matcher = matcher(patterns);
+        assertEquals(1L << 63, find(matcher, "p63;"));
+        assertEquals(1L << 6 | 1L << 60, find(matcher, "p6;p60;"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyPatterns() {
+        new PatternMatcher(Arrays.asList(new byte[PatternMatcher.MAX_PATTERNS + 1][]));
+    }
+}
@@ -0,0 +1,207 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The dispatcher over an engine that only records what it is asked to probe; the tests
+ * finish the probes themselves.
+ */
+public class ProbeDispatcherTest {
+    protected static final int TIMEOUT_MS = 1000;
+    protected static final int HOST_LIMIT = 2;
+
+    protected static class ManualClock implements Clock {
+        protected long now = 1000000;
+
+        @Override
+        public long wallTime() {
+            return now;
+        }
+
+        @Override
+        public long elapsedTime() {
+            return now;
+        }
+    }
+
+    protected static class RecordingEngine extends ProbeEngine {
+        protected final List<ProbeDispatcher.Request> started = new ArrayList<>();
+
+        protected RecordingEngine() throws Exception {
+        }
+
+        @Override
+        public void submit(String address, int kind, int timeoutMs, boolean head, BodyRule rule, Callback callback) {
+            started.add((ProbeDispatcher.Request) callback);
+        }
+    }
+
+    protected static final ProbeEngine.Callback IGNORE = new ProbeEngine.Callback() {
+        @Override
+        public void onResult(Object result, ProbeEngine.Timing timing) {
+        }
+    };
+
+    protected ManualClock clock;
+    protected RecordingEngine engine;
+    protected ProbeDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new ManualClock();
+        engine = new RecordingEngine();
+        dispatcher = new ProbeDispatcher(engine, clock, HOST_LIMIT);
+    }
+
+    protected void submit(String host, int count) {
+        for (int i = 0; i < count; i++) {
+            dispatcher.submit("http://" + host + "/" + i, ProbeEngine.PROBE_HTTP, TIMEOUT_MS, false, null, IGNORE);
+        }
+    }
+
+    /**
+     * Submit one probe to each of as many hosts, so that only the global limit applies.
+     */
+    protected void submitToHosts(int count) {
+        for (int i = 0; i < count; i++) {
+            submit("host" + i, 1);
+        }
+    }
+
+    protected void finish(int index, Object result, long totalMs) {
+        ProbeEngine.Timing timing = new ProbeEngine.Timing();
+        timing.totalMs = totalMs;
+        engine.started.get(index).onResult(result, timing);
+    }
+
+    protected String host(int index) {
+        return engine.started.get(index).host.name;
+    }
+
+    @Test
+    public void hostLimitHoldsBackTheRestOfTheHost() {
+        submit("a", 4);
+        submit("b", 1);
+        assertEquals(3, engine.started.size());
+        assertEquals("a:-1", host(0));
+        assertEquals("a:-1", host(1));
+        assertEquals("b:-1", host(2));
+
+        finish(0, 200, 10);
+        assertEquals(4, engine.started.size());
+        assertEquals("a:-1", host(3));
+    }
+
+    @Test
+    public void waitingHostsTakeTurns() {
+        submitToHosts(ProbeDispatcher.INITIAL_LIMIT);
+        submit("a", 2);
+        submit("b", 2);
+        assertEquals(ProbeDispatcher.INITIAL_LIMIT, engine.started.size());
+
+        /* Each answer frees one slot, given to the next host in turn */
+        for (int i = 0; i < 4; i++) {
+            finish(i, 200, 10);
+        }
+        int first = ProbeDispatcher.INITIAL_LIMIT;
+        assertEquals(first + 4, engine.started.size());
+        assertEquals("a:-1", host(first));
+        assertEquals("b:-1", host(first + 1));
+        assertEquals("a:-1", host(first + 2));
+        assertEquals("b:-1", host(first + 3));
+    }
+
+    @Test
+    public void timelyAnswersRaiseTheLimit() {
+        submitToHosts(100);
+        for (int i = 0; i <= ProbeDispatcher.INITIAL_LIMIT; i++) {
+            finish(i, 200, 10);
+        }
+        /* A round of answers raises the limit by about one */
+        assertEquals(ProbeDispatcher.INITIAL_LIMIT + 1, (int) dispatcher.limit);
+        assertEquals(ProbeDispatcher.INITIAL_LIMIT + 1, dispatcher.inFlight);
+    }
+
+    @Test
+    public void timeoutsHalveTheLimitOncePerInterval() {
+        dispatcher.limit = 64;
+        submitToHosts(100);
+        for (int i = 0; i < 20; i++) {
+            finish(i, new SocketTimeoutException(), TIMEOUT_MS);
+        }
+        assertEquals(32, (int) dispatcher.limit);
+
+        clock.now += ProbeDispatcher.BACKOFF_INTERVAL_MS;
+        finish(20, new SocketTimeoutException(), TIMEOUT_MS);
+        assertEquals(16, (int) dispatcher.limit);
+    }
+
+    @Test
+    public void fewFailuresDoNotBackOff() {
+        submitToHosts(100);
+        finish(0, new SocketTimeoutException(), TIMEOUT_MS);
+        finish(1, new SocketTimeoutException(), TIMEOUT_MS);
+        assertEquals(ProbeDispatcher.INITIAL_LIMIT, (int) dispatcher.limit);
+    }
+
+    @Test
+    public void slowAnswerFromAFastHostCountsAsCongestion() {
+        dispatcher.limit = 64;
+        submitToHosts(32);
+        submit("a", 40);
+        /* The two slots of host a keep being refilled while the answers get slower */
+        finish(32, 200, 10);
+        int slow = 0;
+        for (int i = 33; slow < 6; i++) {
+            if (host(i).equals("a:-1")) {
+                finish(i, 200, 1000);
+                slow += 1;
+            }
+        }
+        assertEquals(32, (int) dispatcher.limit);
+    }
+
+    @Test
+    public void stragglersDoNotChangeTheLimit() {
+        submitToHosts(10);
+        for (int i = 0; i < 10; i++) {
+            finish(i, new SocketTimeoutException(), TIMEOUT_MS);
+        }
+        assertEquals(ProbeDispatcher.INITIAL_LIMIT, (int) dispatcher.limit);
+    }
+
+    @Test
+    public void cancelOnlyFailsTheGivenCallbacks() {
+        final List<Object> cancelled = new ArrayList<>();
+        ProbeEngine.Callback cancelling = new ProbeEngine.Callback() {
+            @Override
+            public void onResult(Object result, ProbeEngine.Timing timing) {
+                cancelled.add(result);
+            }
+        };
+        submit("a", 2);
+        for (int i = 0; i < 2; i++) {
+            dispatcher.submit("http://a/cancelled" + i, ProbeEngine.PROBE_HTTP, TIMEOUT_MS, false, null, cancelling);
+        }
+        submit("a", 1);
+        assertEquals(2, engine.started.size());
+
+        dispatcher.cancel(Collections.singleton(cancelling), new IOException("cancelled"));
+        assertEquals(2, cancelled.size());
+        assertEquals(1, dispatcher.queued);
+
+        /* The waiting probe of the other callback still gets its turn */
+        finish(0, 200, 10);
+        assertEquals(3, engine.started.size());
+        assertEquals("http://a/0", engine.started.get(2).address);
+    }
+}
@@ -0,0 +1,268 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Probes against a local server that gives a canned response to every request.
+ */
+public class ProbeEngineTest {
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+    protected static final int TIMEOUT_MS = 1000;
+    /** Self-signed certificate for localhost, valid for a hundred years */
+    protected static final String KEYSTORE = "localhost.jks";
+    protected static final String KEYSTORE_PASSWORD = "password";
+
+    protected static ProbeEngine tlsEngine;
+
+    protected final List<ServerSocket> servers = new ArrayList<>();
+    protected final List<Socket> sockets = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        for (ServerSocket server : servers) {
+            server.close();
+        }
+    }
+
+    /**
+     * @return address of a server that reads each request header and answers with the response
+     */
+    protected String serve(String response) throws IOException {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        accept(server, response);
+        return "http://127.0.0.1:" + server.getLocalPort() + "/";
+    }
+
+    /**
+     * @return port of a TLS server for localhost, which otherwise works like serve()
+     */
+    protected int serveTls(String response) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = ProbeEngineTest.class.getResourceAsStream(KEYSTORE)) {
+            keyStore.load(in, KEYSTORE_PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        ServerSocket server = context.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("localhost"));
+        accept(server, response);
+        return server.getLocalPort();
+    }
+
+    protected void accept(final ServerSocket server, final String response) {
+        servers.add(server);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept()) {
+                        InputStream in = socket.getInputStream();
+                        int matched = 0;
+                        while (matched < 4) {
+                            int c = in.read();
+                            if (c == -1) {
+                                break;
+                            }
+                            matched = c == "\r\n\r\n".charAt(matched) ? matched + 1 : c == '\r' ? 1 : 0;
+                        }
+                        socket.getOutputStream().write(response.getBytes(ASCII));
+                    } catch (IOException e) {
+                        /* The client went away, or the server was closed */
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return engine of its own that trusts the test certificate, and nothing else
+     */
+    protected static synchronized ProbeEngine tlsEngine() throws Exception {
+        if (tlsEngine == null) {
+            /* The engine's SSLContext reads the default trust store when it is created */
+            System.setProperty("javax.net.ssl.trustStore", new File(ProbeEngineTest.class.getResource(KEYSTORE).toURI()).getPath());
+            System.setProperty("javax.net.ssl.trustStorePassword", KEYSTORE_PASSWORD);
+            try {
+                tlsEngine = new ProbeEngine();
+            } finally {
+                System.clearProperty("javax.net.ssl.trustStore");
+                System.clearProperty("javax.net.ssl.trustStorePassword");
+            }
+        }
+        return tlsEngine;
+    }
+
+    protected static Object probe(String address, BodyRule rule) throws InterruptedException {
+        return probe(ProbeEngine.getInstance(), address, rule);
+    }
+
+    protected static Object probe(ProbeEngine engine, String address, BodyRule rule) throws InterruptedException {
+        return probe(engine, address, ProbeEngine.PROBE_HTTP, rule);
+    }
+
+    protected static Object probe(ProbeEngine engine, String address, int kind, BodyRule rule) throws InterruptedException {
+        final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        engine.submit(address, kind, TIMEOUT_MS, false, rule, new ProbeEngine.Callback() {
+            @Override
+            public void onResult(Object result, ProbeEngine.Timing timing) {
+                results.add(result);
+            }
+        });
+        Object result = results.poll(TIMEOUT_MS * 10, TimeUnit.MILLISECONDS);
+        assertNotNull("no result", result);
+        return result;
+    }
+
+    protected static String chunked(String... chunks) {
+        StringBuilder body = new StringBuilder();
+        for (String chunk : chunks) {
+            body.append(Integer.toHexString(chunk.length())).append("\r\n").append(chunk).append("\r\n");
+        }
+        return body.append("0\r\n\r\n").toString();
+    }
+
+    @Test
+    public void statusCode() throws Exception {
+        assertEquals(503, probe(serve("HTTP/1.1 503 Unavailable\r\nContent-Length: 0\r\n\r\n"), null));
+    }
+
+    @Test
+    public void redirectIsFollowed() throws Exception {
+        String target = serve("HTTP/1.1 204 No Content\r\n\r\n");
+        assertEquals(204, probe(serve("HTTP/1.1 302 Found\r\nLocation: " + target + "\r\n\r\n"), null));
+    }
+
+    @Test
+    public void malformedStatusLineFails() throws Exception {
+        assertTrue(probe(serve("ICY 200 OK\r\n\r\n"), null) instanceof IOException);
+    }
+
+    @Test
+    public void httpsIsProbed() throws Exception {
+        int port = serveTls("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+        assertEquals(200, probe(tlsEngine(), "https://localhost:" + port + "/", null));
+    }
+
+    @Test
+    public void httpsHostNameIsChecked() throws Exception {
+        /* The certificate is for localhost only */
+        int port = serveTls("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+        assertTrue(probe(tlsEngine(), "https://127.0.0.1:" + port + "/", null) instanceof SSLException);
+    }
+
+    @Test
+    public void contentLengthBodyIsScanned() throws Exception {
+        String address = serve("HTTP/1.1 200 OK\r\nContent-Length: 23\r\n\r\n<html>status: ok</html>");
+        assertEquals(200, probe(address, BodyRule.parse("status: ok", 0)));
+        assertTrue(probe(address, BodyRule.parse("status: up", 0)) instanceof ContentMismatchException);
+        assertTrue(probe(address, BodyRule.parse("!html", 0)) instanceof ContentMismatchException);
+    }
+
+    @Test
+    public void bodyBeyondContentLengthIsIgnored() throws Exception {
+        String address = serve("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello world");
+        assertTrue(probe(address, BodyRule.parse("world", 0)) instanceof ContentMismatchException);
+    }
+
+    @Test
+    public void chunkedBodyIsScannedAcrossChunks() throws Exception {
+        String address = serve("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + chunked("<html>sta", "tus: o", "k</html>"));
+        assertEquals(200, probe(address, BodyRule.parse("status: ok", 0)));
+        assertTrue(probe(address, BodyRule.parse("status: up", 0)) instanceof ContentMismatchException);
+    }
+
+    @Test
+    public void chunkSizesAreNotBody() throws Exception {
+        /* "1a" is a chunk size, and must not match */
+        String address = serve("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + chunked("abcdefghijklmnopqrstuvwxyz"));
+        assertTrue(probe(address, BodyRule.parse("1a", 0)) instanceof ContentMismatchException);
+        assertEquals(200, probe(address, BodyRule.parse("xyz", 0)));
+    }
+
+    @Test
+    public void bodyIsScannedUpToTheLimit() throws Exception {
+        String address = serve("HTTP/1.1 200 OK\r\nContent-Length: 20\r\n\r\n0123456789abcdefghij");
+        assertEquals(200, probe(address, BodyRule.parse("789", 10)));
+        assertTrue(probe(address, BodyRule.parse("abc", 10)) instanceof ContentMismatchException);
+    }
+
+    @Test
+    public void connectWithoutAnswerTimesOut() throws Exception {
+        /* A listener whose backlog is full drops further connection attempts unanswered */
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        servers.add(server);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        for (int i = 0; i < 16; i++) {
+            Socket socket = new Socket();
+            sockets.add(socket);
+            try {
+                socket.connect(address, 200);
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+        }
+
+        long start = System.nanoTime();
+        Object result = probe("http://127.0.0.1:" + server.getLocalPort() + "/", null);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue(String.valueOf(result), result instanceof IOException);
+        /* The connect phase has its own timeout; it does not wait for the overall deadline */
+        assertTrue("took " + elapsedMs + " ms", elapsedMs < TIMEOUT_MS * 2);
+    }
+
+    @Test
+    public void connectProbeOnlyConnects() throws Exception {
+        /* The server would fail a request */
+        Object result = probe(ProbeEngine.getInstance(), serve("ICY 200 OK\r\n\r\n"), ProbeEngine.PROBE_TCP, null);
+        assertTrue(result instanceof ProbeEngine.Reachable);
+        assertEquals(0, ((ProbeEngine.Reachable) result).certificateExpiry);
+    }
+
+    @Test
+    public void handshakeProbeReadsTheCertificateExpiry() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = ProbeEngineTest.class.getResourceAsStream(KEYSTORE)) {
+            keyStore.load(in, KEYSTORE_PASSWORD.toCharArray());
+        }
+        X509Certificate certificate = (X509Certificate) keyStore.getCertificate(keyStore.aliases().nextElement());
+
+        int port = serveTls("ICY 200 OK\r\n\r\n");
+        Object result = probe(tlsEngine(), "https://localhost:" + port + "/", ProbeEngine.PROBE_TLS, null);
+        assertTrue(result instanceof ProbeEngine.Reachable);
+        assertEquals(certificate.getNotAfter().getTime(), ((ProbeEngine.Reachable) result).certificateExpiry);
+    }
+}
@@ -0,0 +1,42 @@
+package fi.bel.httpservicemonitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+    @Test
+    public void delaysGrowExponentiallyUpToTheMaximum() {
+        RetryPolicy policy = new RetryPolicy(6, 1000, 2.0, 5000, 0, 1000000);
+        assertEquals(1000, policy.nextDelay(1, 0));
+        assertEquals(2000, policy.nextDelay(2, 0));
+        assertEquals(4000, policy.nextDelay(3, 0));
+        assertEquals(5000, policy.nextDelay(4, 0));
+        assertEquals(5000, policy.nextDelay(5, 0));
+    }
+
+    @Test
+    public void noDelayOnceAttemptsAreUsedUp() {
+        RetryPolicy policy = new RetryPolicy(3, 1000, 2.0, 5000, 0, 1000000);
+        assertEquals(2000, policy.nextDelay(2, 0));
+        assertEquals(-1, policy.nextDelay(3, 0));
+        assertEquals(-1, policy.nextDelay(4, 0));
+    }
+
+    @Test
+    public void noAttemptStartsAfterTheDeadline() {
+        RetryPolicy policy = new RetryPolicy(10, 1000, 2.0, 60000, 0, 10000);
+        assertEquals(4000, policy.nextDelay(3, 6000));
+        assertEquals(-1, policy.nextDelay(3, 6001));
+    }
+
+    @Test
+    public void jitterOnlyShortensTheDelay() {
+        RetryPolicy policy = new RetryPolicy(5, 10000, 2.0, 60000, 0.2, 1000000);
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.nextDelay(2, 0);
+            assertTrue("delay " + delay, delay >= 16000 && delay <= 20000);
+        }
+    }
+}